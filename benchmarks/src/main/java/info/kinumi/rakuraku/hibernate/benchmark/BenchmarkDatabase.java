@@ -0,0 +1,48 @@
+package info.kinumi.rakuraku.hibernate.benchmark;
+
+import info.kinumi.rakuraku.hibernate.Tx;
+import info.kinumi.rakuraku.hibernate.test.entity.DBTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+
+/**
+ * ベンチマーク用のインメモリH2データベース
+ * 
+ * @author kunimi.ikeda
+ */
+class BenchmarkDatabase {
+
+	/**
+	 * インスタンス化しない
+	 */
+	private BenchmarkDatabase() {
+	}
+
+	/**
+	 * test テーブルを作り直し、rows 件の DBTest を入れたセッションファクトリを作成する
+	 * 
+	 * @param rows
+	 * @return
+	 */
+	static SessionFactory open(int rows) {
+		SessionFactory sf = new Configuration().configure("hibernate-bench.cfg.xml").buildSessionFactory();
+		Session s = sf.openSession();
+		s.createSQLQuery(" drop table test if exists; ").executeUpdate();
+		s.createSQLQuery(" create table test (id int primary key, a varchar(255), b varchar(255), c varchar(255)); ").executeUpdate();
+		s.close();
+		try (Tx tx = new Tx(sf)) {
+			List<DBTest> list = new ArrayList<>(rows);
+			for (int i = 1; i <= rows; i++) {
+				list.add(new DBTest(i, "a" + i, "b" + i, String.valueOf(i % 2)));
+			}
+			tx.saveAll(list);
+			tx.commit();
+		}
+		return sf;
+	}
+}
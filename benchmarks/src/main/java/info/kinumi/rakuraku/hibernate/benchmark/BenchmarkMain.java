@@ -0,0 +1,30 @@
+package info.kinumi.rakuraku.hibernate.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 全ベンチマークを GC プロファイラ付きで実行する
+ * 
+ * java -jar target/benchmarks.jar [JMH options]
+ * 
+ * スループットと、1操作あたりのアロケーション (gc.alloc.rate.norm) を出力します。
+ * 
+ * @author kunimi.ikeda
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(commandLine).addProfiler(GCProfiler.class);
+		if (commandLine.getIncludes().isEmpty()) {
+			builder.include(BenchmarkMain.class.getPackage().getName() + ".*");
+		}
+		Options options = builder.build();
+		new Runner(options).run();
+	}
+}
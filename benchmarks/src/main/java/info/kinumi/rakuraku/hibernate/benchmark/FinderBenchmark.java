@@ -0,0 +1,86 @@
+package info.kinumi.rakuraku.hibernate.benchmark;
+
+import info.kinumi.rakuraku.hibernate.Tx;
+import info.kinumi.rakuraku.hibernate.test.entity.DBTest;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * RakuRakuFinder.list() のベンチマーク
+ * 
+ * 結果の件数ごとに、素の Hibernate と比較します。
+ * uniq() は件数によらないので FinderUniqBenchmark で測ります。
+ * 
+ * @author kunimi.ikeda
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FinderBenchmark {
+
+	/**
+	 * テーブルの件数
+	 */
+	static final int ROWS = 1000;
+
+	/**
+	 * 取得する件数
+	 */
+	@Param({ "1", "10", "100", "1000" })
+	int _size;
+
+	/**
+	 * Hibernateセッションファクトリ
+	 */
+	SessionFactory _sf;
+
+	@Setup
+	public void setUp() {
+		_sf = BenchmarkDatabase.open(ROWS);
+	}
+
+	@TearDown
+	public void tearDown() {
+		_sf.close();
+	}
+
+	@Benchmark
+	public List<DBTest> finder_list() {
+		try (Tx tx = new Tx(_sf)) {
+			List<DBTest> list = tx.from(DBTest.class)
+				.where("id <= :id")
+				.orderBy("id")
+				.param("id", _size)
+				.list();
+			tx.commit();
+			return list;
+		}
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public List<DBTest> raw_list() {
+		Session session = _sf.openSession();
+		Transaction t = session.beginTransaction();
+		List<DBTest> list = session.createQuery("from " + DBTest.class.getCanonicalName() + " where id <= :id order by id")
+			.setParameter("id", _size)
+			.list();
+		t.commit();
+		session.close();
+		return list;
+	}
+}
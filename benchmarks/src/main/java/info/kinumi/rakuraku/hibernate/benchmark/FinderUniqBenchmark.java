@@ -0,0 +1,81 @@
+package info.kinumi.rakuraku.hibernate.benchmark;
+
+import info.kinumi.rakuraku.hibernate.Tx;
+import info.kinumi.rakuraku.hibernate.test.entity.DBTest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * RakuRakuFinder.uniq() のベンチマーク
+ * 
+ * 主キーで1件取得し、素の Hibernate と比較します。
+ * 
+ * @author kunimi.ikeda
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FinderUniqBenchmark {
+
+	/**
+	 * テーブルの件数
+	 */
+	static final int ROWS = 1000;
+
+	/**
+	 * 取得する ID
+	 */
+	static final int ID = ROWS / 2;
+
+	/**
+	 * Hibernateセッションファクトリ
+	 */
+	SessionFactory _sf;
+
+	@Setup
+	public void setUp() {
+		_sf = BenchmarkDatabase.open(ROWS);
+	}
+
+	@TearDown
+	public void tearDown() {
+		_sf.close();
+	}
+
+	@Benchmark
+	public DBTest finder_uniq() {
+		try (Tx tx = new Tx(_sf)) {
+			DBTest o = tx.from(DBTest.class)
+				.where("id = :id")
+				.param("id", ID)
+				.uniq();
+			tx.commit();
+			return o;
+		}
+	}
+
+	@Benchmark
+	public DBTest raw_uniq() {
+		Session session = _sf.openSession();
+		Transaction t = session.beginTransaction();
+		DBTest o = (DBTest) session.createQuery("from " + DBTest.class.getCanonicalName() + " where id = :id")
+			.setParameter("id", ID)
+			.setMaxResults(1)
+			.uniqueResult();
+		t.commit();
+		session.close();
+		return o;
+	}
+}
@@ -0,0 +1,65 @@
+package info.kinumi.rakuraku.hibernate.benchmark;
+
+import info.kinumi.rakuraku.hibernate.RakuRakuDeleter;
+import info.kinumi.rakuraku.hibernate.RakuRakuFinder;
+import info.kinumi.rakuraku.hibernate.RakuRakuQuery;
+import info.kinumi.rakuraku.hibernate.RakuRakuUpdater;
+import info.kinumi.rakuraku.hibernate.test.entity.DBTest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+/**
+ * ビルダーによるHQL組み立てだけのベンチマーク (データベースには接続しない)
+ * 
+ * @author kunimi.ikeda
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HQLBenchmark {
+
+	/**
+	 * 組み立て済みのクエリ
+	 */
+	static final RakuRakuQuery<DBTest> QUERY = RakuRakuQuery.from(DBTest.class)
+		.where("c = :c", "a like :a")
+		.orderBy("id desc", "b");
+
+	@Benchmark
+	public String finder_hql() {
+		return new RakuRakuFinder<>(DBTest.class, (Session) null)
+			.where("c = :c", "a like :a")
+			.orderBy("id desc", "b")
+			.param("c", "1")
+			.param("a", "%b%")
+			.getHQL();
+	}
+
+	@Benchmark
+	public String query_hql() {
+		return QUERY.getHQL();
+	}
+
+	@Benchmark
+	public String updater_hql() {
+		return new RakuRakuUpdater<>(DBTest.class, (Session) null)
+			.set("c = :newC")
+			.where("c = :c")
+			.param("newC", "2")
+			.param("c", "1")
+			.getHQL();
+	}
+
+	@Benchmark
+	public String deleter_hql() {
+		return new RakuRakuDeleter<>(DBTest.class, (Session) null)
+			.where("c = :c")
+			.param("c", "1")
+			.getHQL();
+	}
+}
@@ -0,0 +1,60 @@
+package info.kinumi.rakuraku.hibernate.benchmark;
+
+import info.kinumi.rakuraku.hibernate.Tx;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Tx の開始とコミットのベンチマーク
+ * 
+ * @author kunimi.ikeda
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TxBenchmark {
+
+	/**
+	 * Hibernateセッションファクトリ
+	 */
+	SessionFactory _sf;
+
+	@Setup
+	public void setUp() {
+		_sf = BenchmarkDatabase.open(10);
+	}
+
+	@TearDown
+	public void tearDown() {
+		_sf.close();
+	}
+
+	@Benchmark
+	public void tx_open_commit() {
+		try (Tx tx = new Tx(_sf)) {
+			// Tx はセッションを遅延して開くので、素の Hibernate と同じくセッションとトランザクションを開始させる
+			tx.getSession();
+			tx.commit();
+		}
+	}
+
+	@Benchmark
+	public void raw_open_commit() {
+		Session session = _sf.openSession();
+		Transaction t = session.beginTransaction();
+		t.commit();
+		session.close();
+	}
+}
@@ -0,0 +1,93 @@
+package info.kinumi.rakuraku.hibernate.benchmark;
+
+import info.kinumi.rakuraku.hibernate.Tx;
+import info.kinumi.rakuraku.hibernate.test.entity.DBTest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * RakuRakuUpdater / RakuRakuDeleter.execute() のベンチマーク
+ * 
+ * テーブルの内容が変わらないよう、トランザクションはロールバックします。
+ * 
+ * @author kunimi.ikeda
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UpdaterBenchmark {
+
+	/**
+	 * Hibernateセッションファクトリ
+	 */
+	SessionFactory _sf;
+
+	@Setup
+	public void setUp() {
+		_sf = BenchmarkDatabase.open(100);
+	}
+
+	@TearDown
+	public void tearDown() {
+		_sf.close();
+	}
+
+	@Benchmark
+	public int updater_execute() {
+		try (Tx tx = new Tx(_sf)) {
+			return tx.update(DBTest.class)
+				.set("c = :newC")
+				.where("id = :id")
+				.param("newC", "x")
+				.param("id", 50)
+				.execute();
+		}
+	}
+
+	@Benchmark
+	public int raw_update() {
+		Session session = _sf.openSession();
+		Transaction t = session.beginTransaction();
+		int count = session.createQuery("update " + DBTest.class.getCanonicalName() + " set c = :newC where id = :id")
+			.setParameter("newC", "x")
+			.setParameter("id", 50)
+			.executeUpdate();
+		t.rollback();
+		session.close();
+		return count;
+	}
+
+	@Benchmark
+	public int deleter_execute() {
+		try (Tx tx = new Tx(_sf)) {
+			return tx.delete(DBTest.class)
+				.where("id = :id")
+				.param("id", 50)
+				.execute();
+		}
+	}
+
+	@Benchmark
+	public int raw_delete() {
+		Session session = _sf.openSession();
+		Transaction t = session.beginTransaction();
+		int count = session.createQuery("delete " + DBTest.class.getCanonicalName() + " where id = :id")
+			.setParameter("id", 50)
+			.executeUpdate();
+		t.rollback();
+		session.close();
+		return count;
+	}
+}
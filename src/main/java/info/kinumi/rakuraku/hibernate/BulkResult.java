@@ -0,0 +1,100 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一括処理の結果
+ * 
+ * <code>
+ * BulkResult r = tx.saveAll(entities);
+ * r.getCount();         // => 処理した件数
+ * r.getRowsPerSecond(); // => 1秒あたりの処理件数
+ * </code>
+ * 
+ * @author kunimi.ikeda
+ */
+public class BulkResult {
+
+	/**
+	 * 処理件数
+	 */
+	long _count;
+
+	/**
+	 * 処理時間 (ナノ秒)
+	 */
+	long _elapsedNanos;
+
+	/**
+	 * 不正で処理しなかった件数
+	 */
+	long _rejected;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param count
+	 * @param elapsedNanos
+	 */
+	public BulkResult(long count, long elapsedNanos) {
+		this(count, elapsedNanos, 0);
+	}
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param count
+	 * @param elapsedNanos
+	 * @param rejected
+	 */
+	public BulkResult(long count, long elapsedNanos, long rejected) {
+		_count = count;
+		_elapsedNanos = elapsedNanos;
+		_rejected = rejected;
+	}
+
+	/**
+	 * 処理件数を取得する
+	 * 
+	 * @return
+	 */
+	public long getCount() {
+		return _count;
+	}
+
+	/**
+	 * 不正で処理しなかった件数を取得する
+	 * 
+	 * @return
+	 */
+	public long getRejected() {
+		return _rejected;
+	}
+
+	/**
+	 * 処理時間 (ミリ秒) を取得する
+	 * 
+	 * @return
+	 */
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(_elapsedNanos);
+	}
+
+	/**
+	 * 1秒あたりの処理件数を取得する
+	 * 
+	 * @return
+	 */
+	public double getRowsPerSecond() {
+		if (_elapsedNanos <= 0) {
+			return 0;
+		}
+		return _count * (double) TimeUnit.SECONDS.toNanos(1) / _elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		String s = String.format("%d rows in %d ms (%.1f rows/s)", _count, getElapsedMillis(), getRowsPerSecond());
+		return _rejected > 0 ? s + ", " + _rejected + " rejected" : s;
+	}
+}
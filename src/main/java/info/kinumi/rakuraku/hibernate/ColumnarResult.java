@@ -0,0 +1,614 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 列指向の検索結果
+ * 
+ * ResultSet をカラムごとのプリミティブ配列に直接読み込みます。
+ * 行ごとの Object[] や値のボクシングがないので、大量の数値カラムを読むときのメモリとGCを抑えられます。
+ * 
+ * <ul>
+ * <li>INTEGER, SMALLINT, TINYINT => int[]</li>
+ * <li>BIGINT, 小数部のない DECIMAL, NUMERIC (18桁まで) => long[]</li>
+ * <li>DOUBLE, FLOAT, REAL => double[]</li>
+ * <li>小数部のある DECIMAL, NUMERIC => BigDecimal の Object[] (double にすると誤差が出るため)</li>
+ * <li>CHAR, VARCHAR など => 辞書 (String[]) とコード (int[])</li>
+ * <li>その他 => Object[]</li>
+ * </ul>
+ * 
+ * null は BitSet で管理し、プリミティブの値は 0 になります。
+ * 
+ * <code>
+ * ColumnarResult result = tx.sql("select id, price from item").columns();
+ * int[] ids = result.getInts("id");
+ * double[] prices = result.getDoubles("price");
+ * </code>
+ * 
+ * @author kunimi.ikeda
+ */
+public class ColumnarResult {
+
+	/**
+	 * 配列の初期サイズ
+	 */
+	static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * long に収まる DECIMAL, NUMERIC の桁数
+	 */
+	static final int MAX_LONG_PRECISION = 18;
+
+	/**
+	 * カラム名 (ResultSet のラベル)
+	 */
+	final String[] _names;
+
+	/**
+	 * 大文字のカラム名 => 添字
+	 */
+	final Map<String, Integer> _indexes = new HashMap<>();
+
+	/**
+	 * カラム
+	 */
+	final Column[] _columns;
+
+	/**
+	 * 行数
+	 */
+	int _size;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param meta
+	 * @throws SQLException
+	 */
+	ColumnarResult(ResultSetMetaData meta) throws SQLException {
+		int count = meta.getColumnCount();
+		_names = new String[count];
+		_columns = new Column[count];
+		for (int i = 0; i < count; i++) {
+			_names[i] = meta.getColumnLabel(i + 1);
+			if (!_indexes.containsKey(_names[i].toUpperCase())) {
+				_indexes.put(_names[i].toUpperCase(), i);
+			}
+			_columns[i] = Column.of(meta.getColumnType(i + 1), meta.getPrecision(i + 1), meta.getScale(i + 1));
+		}
+	}
+
+	/**
+	 * ResultSet を読み込む
+	 * 
+	 * @param rs
+	 * @param offset
+	 *            読み飛ばす行数
+	 * @param limit
+	 *            読み込む行数の上限 (null なら全部)
+	 * @return
+	 * @throws SQLException
+	 */
+	static ColumnarResult read(ResultSet rs, int offset, Integer limit) throws SQLException {
+		ColumnarResult result = new ColumnarResult(rs.getMetaData());
+		for (int i = 0; i < offset && rs.next(); i++) {
+			// skip
+		}
+		while ((limit == null || result._size < limit) && rs.next()) {
+			for (int i = 0; i < result._columns.length; i++) {
+				result._columns[i].read(rs, i + 1, result._size);
+			}
+			result._size++;
+		}
+		return result;
+	}
+
+	/**
+	 * 行数
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * カラム名
+	 * 
+	 * @return
+	 */
+	public String[] getColumnNames() {
+		return _names.clone();
+	}
+
+	/**
+	 * カラムの添字を取得する (大文字小文字を区別しない)
+	 * 
+	 * @param name
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             カラムがない場合
+	 */
+	public int getColumnIndex(String name) {
+		Integer index = _indexes.get(name.toUpperCase());
+		if (index == null) {
+			throw new IllegalArgumentException("no such column: " + name + " in " + Arrays.toString(_names));
+		}
+		return index;
+	}
+
+	/**
+	 * null か
+	 * 
+	 * @param column
+	 * @param row
+	 * @return
+	 */
+	public boolean isNull(int column, int row) {
+		checkRow(row);
+		return _columns[column]._nulls.get(row);
+	}
+
+	/**
+	 * int で取得する
+	 * 
+	 * @param column
+	 * @param row
+	 * @return
+	 */
+	public int getInt(int column, int row) {
+		return (int) getLong(column, row);
+	}
+
+	/**
+	 * long で取得する
+	 * 
+	 * @param column
+	 * @param row
+	 * @return
+	 */
+	public long getLong(int column, int row) {
+		checkRow(row);
+		return _columns[column].getLong(row);
+	}
+
+	/**
+	 * double で取得する
+	 * 
+	 * @param column
+	 * @param row
+	 * @return
+	 */
+	public double getDouble(int column, int row) {
+		checkRow(row);
+		return _columns[column].getDouble(row);
+	}
+
+	/**
+	 * 文字列で取得する
+	 * 
+	 * @param column
+	 * @param row
+	 * @return
+	 */
+	public String getString(int column, int row) {
+		Object o = getObject(column, row);
+		return o != null ? o.toString() : null;
+	}
+
+	/**
+	 * 値を取得する (ボクシングされます)
+	 * 
+	 * @param column
+	 * @param row
+	 * @return
+	 */
+	public Object getObject(int column, int row) {
+		checkRow(row);
+		return _columns[column]._nulls.get(row) ? null : _columns[column].get(row);
+	}
+
+	/**
+	 * int のカラムを配列で取得する (行数ちょうどのコピー)
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public int[] getInts(String name) {
+		return ((IntColumn) column(name, IntColumn.class))._values.clone();
+	}
+
+	/**
+	 * long のカラムを配列で取得する (行数ちょうどのコピー)
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public long[] getLongs(String name) {
+		return ((LongColumn) column(name, LongColumn.class))._values.clone();
+	}
+
+	/**
+	 * double のカラムを配列で取得する (行数ちょうどのコピー)
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public double[] getDoubles(String name) {
+		return ((DoubleColumn) column(name, DoubleColumn.class))._values.clone();
+	}
+
+	/**
+	 * 文字列のカラムの辞書を取得する
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public String[] getDictionary(String name) {
+		List<String> dictionary = ((StringColumn) column(name, StringColumn.class))._dictionary;
+		return dictionary.toArray(new String[dictionary.size()]);
+	}
+
+	/**
+	 * 文字列のカラムの辞書のコードを取得する (null は -1)
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public int[] getCodes(String name) {
+		return ((StringColumn) column(name, StringColumn.class))._codes.clone();
+	}
+
+	/**
+	 * null の行を取得する
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public BitSet getNulls(String name) {
+		return (BitSet) _columns[getColumnIndex(name)]._nulls.clone();
+	}
+
+	/**
+	 * カラムを取得して配列を行数に切り詰める
+	 * 
+	 * @param name
+	 * @param type
+	 * @return
+	 */
+	Column column(String name, Class<? extends Column> type) {
+		Column column = _columns[getColumnIndex(name)];
+		if (!type.isInstance(column)) {
+			throw new IllegalArgumentException(name + " is not " + type.getSimpleName());
+		}
+		column.trim(_size);
+		return column;
+	}
+
+	/**
+	 * 行の範囲をチェックする
+	 * 
+	 * @param row
+	 */
+	void checkRow(int row) {
+		if (row < 0 || row >= _size) {
+			throw new IndexOutOfBoundsException("row " + row + " of " + _size);
+		}
+	}
+
+	/**
+	 * 1カラム
+	 */
+	abstract static class Column {
+
+		/**
+		 * null の行
+		 */
+		final BitSet _nulls = new BitSet();
+
+		/**
+		 * JDBC の型からカラムを作る
+		 * 
+		 * @param sqlType
+		 * @param precision
+		 *            DECIMAL, NUMERIC の桁数 (不明なら 0)
+		 * @param scale
+		 *            DECIMAL, NUMERIC の小数部の桁数
+		 * @return
+		 */
+		static Column of(int sqlType, int precision, int scale) {
+			switch (sqlType) {
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return new IntColumn();
+			case Types.BIGINT:
+				return new LongColumn();
+			case Types.DOUBLE:
+			case Types.FLOAT:
+			case Types.REAL:
+				return new DoubleColumn();
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				if (scale == 0 && precision > 0 && precision <= MAX_LONG_PRECISION) {
+					return new LongColumn();
+				}
+				return new ObjectColumn();
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.LONGVARCHAR:
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+			case Types.LONGNVARCHAR:
+				return new StringColumn();
+			default:
+				return new ObjectColumn();
+			}
+		}
+
+		/**
+		 * 1行読み込む
+		 * 
+		 * @param rs
+		 * @param index
+		 * @param row
+		 * @throws SQLException
+		 */
+		abstract void read(ResultSet rs, int index, int row) throws SQLException;
+
+		/**
+		 * 値を取得する
+		 * 
+		 * @param row
+		 * @return
+		 */
+		abstract Object get(int row);
+
+		/**
+		 * long で取得する
+		 * 
+		 * @param row
+		 * @return
+		 */
+		long getLong(int row) {
+			Object o = get(row);
+			return o instanceof Number ? ((Number) o).longValue() : 0;
+		}
+
+		/**
+		 * double で取得する
+		 * 
+		 * @param row
+		 * @return
+		 */
+		double getDouble(int row) {
+			Object o = get(row);
+			return o instanceof Number ? ((Number) o).doubleValue() : 0;
+		}
+
+		/**
+		 * 配列を行数に切り詰める
+		 * 
+		 * @param size
+		 */
+		abstract void trim(int size);
+
+		/**
+		 * 配列を広げたサイズ
+		 * 
+		 * @param length
+		 * @param row
+		 * @return
+		 */
+		static int grow(int length, int row) {
+			return row < length ? length : Math.max(INITIAL_CAPACITY, length + (length >> 1));
+		}
+	}
+
+	/**
+	 * int のカラム
+	 */
+	static class IntColumn extends Column {
+
+		int[] _values = new int[0];
+
+		@Override
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			if (row >= _values.length) {
+				_values = Arrays.copyOf(_values, grow(_values.length, row));
+			}
+			_values[row] = rs.getInt(index);
+			if (rs.wasNull()) {
+				_nulls.set(row);
+			}
+		}
+
+		@Override
+		Object get(int row) {
+			return _values[row];
+		}
+
+		@Override
+		long getLong(int row) {
+			return _values[row];
+		}
+
+		@Override
+		double getDouble(int row) {
+			return _values[row];
+		}
+
+		@Override
+		void trim(int size) {
+			if (_values.length != size) {
+				_values = Arrays.copyOf(_values, size);
+			}
+		}
+	}
+
+	/**
+	 * long のカラム
+	 */
+	static class LongColumn extends Column {
+
+		long[] _values = new long[0];
+
+		@Override
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			if (row >= _values.length) {
+				_values = Arrays.copyOf(_values, grow(_values.length, row));
+			}
+			_values[row] = rs.getLong(index);
+			if (rs.wasNull()) {
+				_nulls.set(row);
+			}
+		}
+
+		@Override
+		Object get(int row) {
+			return _values[row];
+		}
+
+		@Override
+		long getLong(int row) {
+			return _values[row];
+		}
+
+		@Override
+		double getDouble(int row) {
+			return _values[row];
+		}
+
+		@Override
+		void trim(int size) {
+			if (_values.length != size) {
+				_values = Arrays.copyOf(_values, size);
+			}
+		}
+	}
+
+	/**
+	 * double のカラム
+	 */
+	static class DoubleColumn extends Column {
+
+		double[] _values = new double[0];
+
+		@Override
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			if (row >= _values.length) {
+				_values = Arrays.copyOf(_values, grow(_values.length, row));
+			}
+			_values[row] = rs.getDouble(index);
+			if (rs.wasNull()) {
+				_nulls.set(row);
+			}
+		}
+
+		@Override
+		Object get(int row) {
+			return _values[row];
+		}
+
+		@Override
+		long getLong(int row) {
+			return (long) _values[row];
+		}
+
+		@Override
+		double getDouble(int row) {
+			return _values[row];
+		}
+
+		@Override
+		void trim(int size) {
+			if (_values.length != size) {
+				_values = Arrays.copyOf(_values, size);
+			}
+		}
+	}
+
+	/**
+	 * 辞書で符号化した文字列のカラム
+	 */
+	static class StringColumn extends Column {
+
+		int[] _codes = new int[0];
+
+		final List<String> _dictionary = new ArrayList<>();
+
+		final Map<String, Integer> _lookup = new HashMap<>();
+
+		@Override
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			if (row >= _codes.length) {
+				_codes = Arrays.copyOf(_codes, grow(_codes.length, row));
+			}
+			String value = rs.getString(index);
+			if (value == null) {
+				_nulls.set(row);
+				_codes[row] = -1;
+				return;
+			}
+			Integer code = _lookup.get(value);
+			if (code == null) {
+				code = _dictionary.size();
+				_dictionary.add(value);
+				_lookup.put(value, code);
+			}
+			_codes[row] = code;
+		}
+
+		@Override
+		Object get(int row) {
+			return _codes[row] >= 0 ? _dictionary.get(_codes[row]) : null;
+		}
+
+		@Override
+		void trim(int size) {
+			if (_codes.length != size) {
+				_codes = Arrays.copyOf(_codes, size);
+			}
+		}
+	}
+
+	/**
+	 * その他の型のカラム
+	 */
+	static class ObjectColumn extends Column {
+
+		Object[] _values = new Object[0];
+
+		@Override
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			if (row >= _values.length) {
+				_values = Arrays.copyOf(_values, grow(_values.length, row));
+			}
+			_values[row] = rs.getObject(index);
+			if (_values[row] == null) {
+				_nulls.set(row);
+			}
+		}
+
+		@Override
+		Object get(int row) {
+			return _values[row];
+		}
+
+		@Override
+		void trim(int size) {
+			if (_values.length != size) {
+				_values = Arrays.copyOf(_values, size);
+			}
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 区切り文字のファイルを読む
+ * 
+ * ファイルを一定サイズの窓ごとにメモリマップし、バイト単位で1レコードずつ解析します。
+ * 区切り文字, 引用符, 改行はすべて ASCII なので、UTF-8 のままフィールドを切り出せます。
+ * ExportFormat の CSV (RFC 4180) と TSV (\t, \n, \r, \\ のエスケープ) を読めます。空行は読み飛ばします。
+ * null のフィールド (CSV は引用符のない空, TSV は \N) は null になります。
+ * 
+ * @author kunimi.ikeda
+ */
+class DelimitedReader implements AutoCloseable {
+
+	/**
+	 * メモリマップする窓のサイズ
+	 */
+	static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * ファイル
+	 */
+	final FileChannel _channel;
+
+	/**
+	 * ファイルサイズ
+	 */
+	final long _size;
+
+	/**
+	 * 形式
+	 */
+	final ExportFormat _format;
+
+	/**
+	 * 区切り文字
+	 */
+	final char _delimiter;
+
+	/**
+	 * 現在の窓
+	 */
+	MappedByteBuffer _window;
+
+	/**
+	 * 次の窓の開始位置
+	 */
+	long _next;
+
+	/**
+	 * 先読みした1バイト (なければ -2)
+	 */
+	int _pushback = -2;
+
+	/**
+	 * フィールドのバイト列
+	 */
+	byte[] _bytes = new byte[256];
+
+	/**
+	 * フィールドの長さ
+	 */
+	int _length;
+
+	/**
+	 * フィールドが null か
+	 */
+	boolean _null;
+
+	/**
+	 * レコードのフィールド (next() ごとに使い回す)
+	 */
+	final List<String> _fields = new ArrayList<>();
+
+	/**
+	 * 読んだレコード数 (ヘッダを含む)
+	 */
+	long _records;
+
+	/**
+	 * 読んだ改行の数
+	 */
+	long _lines;
+
+	/**
+	 * 最後に読んだレコードの開始行 (1 から)
+	 */
+	long _line;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param path
+	 * @param format
+	 * @throws IOException
+	 */
+	DelimitedReader(Path path, ExportFormat format) throws IOException {
+		_channel = FileChannel.open(path, StandardOpenOption.READ);
+		_size = _channel.size();
+		_format = format;
+		_delimiter = format.getDelimiter();
+	}
+
+	/**
+	 * 次のレコードを読む
+	 * 
+	 * @return フィールドのリスト (次の呼び出しで上書きされます), 終わりなら null
+	 * @throws IOException
+	 */
+	List<String> next() throws IOException {
+		while (true) {
+			int c = read();
+			if (c == -1) {
+				return null;
+			}
+			if (c == '\n' || c == '\r') {
+				continue;
+			}
+			_pushback = c;
+			break;
+		}
+		_line = _lines + 1;
+		_fields.clear();
+		_length = 0;
+		_null = _format == ExportFormat.CSV;
+		boolean quoted = false;
+		while (true) {
+			int c = read();
+			if (quoted) {
+				if (c == -1) {
+					endField();
+					break;
+				}
+				if (c == '"') {
+					int c2 = read();
+					if (c2 == '"') {
+						append(c2);
+					}
+					else {
+						quoted = false;
+						_pushback = c2;
+					}
+				}
+				else {
+					append(c);
+				}
+				continue;
+			}
+			if (c == _delimiter) {
+				endField();
+			}
+			else if (c == '\n' || c == -1) {
+				endField();
+				break;
+			}
+			else if (c == '\r') {
+				// CRLF
+			}
+			else if (_format == ExportFormat.CSV && c == '"' && _length == 0) {
+				quoted = true;
+				_null = false;
+			}
+			else if (_format == ExportFormat.TSV && c == '\\') {
+				int c2 = read();
+				switch (c2) {
+				case 'N':
+					if (_length == 0) {
+						_null = true;
+					}
+					else {
+						append(c2);
+					}
+					break;
+				case 't':
+					append('\t');
+					break;
+				case 'n':
+					append('\n');
+					break;
+				case 'r':
+					append('\r');
+					break;
+				case -1:
+					append(c);
+					break;
+				default:
+					append(c2);
+				}
+			}
+			else {
+				append(c);
+			}
+		}
+		_records++;
+		return _fields;
+	}
+
+	/**
+	 * 1バイト読む
+	 * 
+	 * @return 終わりなら -1
+	 * @throws IOException
+	 */
+	int read() throws IOException {
+		if (_pushback != -2) {
+			int c = _pushback;
+			_pushback = -2;
+			return c;
+		}
+		if (_window == null || !_window.hasRemaining()) {
+			if (_next >= _size) {
+				return -1;
+			}
+			long size = Math.min(WINDOW_SIZE, _size - _next);
+			_window = _channel.map(FileChannel.MapMode.READ_ONLY, _next, size);
+			_next += size;
+		}
+		int c = _window.get() & 0xff;
+		if (c == '\n') {
+			_lines++;
+		}
+		return c;
+	}
+
+	/**
+	 * フィールドに1バイト追加する
+	 * 
+	 * @param c
+	 */
+	void append(int c) {
+		_null = false;
+		if (_length == _bytes.length) {
+			_bytes = Arrays.copyOf(_bytes, _length * 2);
+		}
+		_bytes[_length++] = (byte) c;
+	}
+
+	/**
+	 * フィールドを終える
+	 */
+	void endField() {
+		_fields.add(_null && _length == 0 ? null : new String(_bytes, 0, _length, ExportWriter.UTF_8));
+		_length = 0;
+		_null = _format == ExportFormat.CSV;
+	}
+
+	/**
+	 * 読んだレコード数 (ヘッダを含む)
+	 * 
+	 * @return
+	 */
+	long getRecords() {
+		return _records;
+	}
+
+	/**
+	 * 最後に読んだレコードの開始行 (1 から, 引用符の中の改行と空行も数えます)
+	 * 
+	 * @return
+	 */
+	long getLine() {
+		return _line;
+	}
+
+	@Override
+	public void close() throws IOException {
+		_window = null;
+		_channel.close();
+	}
+}
@@ -0,0 +1,192 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.HibernateException;
+import org.hibernate.transform.ResultTransformer;
+
+/**
+ * ネイティブSQLの行を DTO のフィールドにマッピングする
+ * 
+ * カラム名と一致するフィールド (大文字小文字と _ を無視) に値をセットします。
+ * DTO には引数なしのコンストラクタが必要です。
+ * カラムとフィールドの対応はカラム名の並びごとに1回だけ解決し、以降の行では配列の添字でセットします。
+ * 
+ * @param <T>
+ *            DTO クラス
+ * @author kunimi.ikeda
+ */
+class DtoResultTransformer<T> implements ResultTransformer {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * クラスごとの 正規化したフィールド名 => フィールド
+	 */
+	static final ConcurrentMap<Class<?>, Map<String, Field>> FIELDS = new ConcurrentHashMap<>();
+
+	/**
+	 * DTO クラス
+	 */
+	final Class<T> _klass;
+
+	/**
+	 * 引数なしのコンストラクタ
+	 */
+	final Constructor<T> _constructor;
+
+	/**
+	 * 解決済みのカラム名の並び
+	 */
+	transient String[] _aliases;
+
+	/**
+	 * カラムの添字 => フィールド (対応するフィールドがなければ null)
+	 */
+	transient Field[] _fields;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param klass
+	 */
+	DtoResultTransformer(Class<T> klass) {
+		_klass = klass;
+		try {
+			_constructor = klass.getDeclaredConstructor();
+			_constructor.setAccessible(true);
+		}
+		catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(klass.getName() + " needs a no-arg constructor", e);
+		}
+	}
+
+	@Override
+	public Object transformTuple(Object[] tuple, String[] aliases) {
+		Field[] fields = resolve(aliases);
+		try {
+			T row = _constructor.newInstance();
+			for (int i = 0; i < fields.length; i++) {
+				if (fields[i] != null && tuple[i] != null) {
+					fields[i].set(row, convert(tuple[i], fields[i].getType()));
+				}
+			}
+			return row;
+		}
+		catch (ReflectiveOperationException e) {
+			throw new HibernateException("could not map row to " + _klass.getName(), e);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public List transformList(List collection) {
+		return collection;
+	}
+
+	/**
+	 * カラム名の並びをフィールドに解決する
+	 * 
+	 * @param aliases
+	 * @return
+	 */
+	Field[] resolve(String[] aliases) {
+		if (_aliases != aliases && !Arrays.equals(_aliases, aliases)) {
+			Map<String, Field> byName = fields(_klass);
+			Field[] fields = new Field[aliases.length];
+			for (int i = 0; i < aliases.length; i++) {
+				fields[i] = aliases[i] != null ? byName.get(normalize(aliases[i])) : null;
+			}
+			_fields = fields;
+			_aliases = aliases;
+		}
+		return _fields;
+	}
+
+	/**
+	 * クラスのフィールドを取得する (キャッシュする)
+	 * 
+	 * @param klass
+	 * @return
+	 */
+	static Map<String, Field> fields(Class<?> klass) {
+		Map<String, Field> fields = FIELDS.get(klass);
+		if (fields == null) {
+			fields = new HashMap<>();
+			for (Class<?> c = klass; c != null && c != Object.class; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					int modifiers = field.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers)) {
+						continue;
+					}
+					String name = normalize(field.getName());
+					if (!fields.containsKey(name)) {
+						field.setAccessible(true);
+						fields.put(name, field);
+					}
+				}
+			}
+			FIELDS.putIfAbsent(klass, fields);
+		}
+		return fields;
+	}
+
+	/**
+	 * 名前を正規化する (小文字にして _ を除く)
+	 * 
+	 * @param name
+	 * @return
+	 */
+	static String normalize(String name) {
+		return name.replace("_", "").toLowerCase();
+	}
+
+	/**
+	 * JDBC の値をフィールドの型に変換する
+	 * 
+	 * @param value
+	 * @param type
+	 * @return
+	 */
+	static Object convert(Object value, Class<?> type) {
+		if (type.isInstance(value) || !(value instanceof Number)) {
+			return value;
+		}
+		Number n = (Number) value;
+		if (type == int.class || type == Integer.class) {
+			return n.intValue();
+		}
+		if (type == long.class || type == Long.class) {
+			return n.longValue();
+		}
+		if (type == double.class || type == Double.class) {
+			return n.doubleValue();
+		}
+		if (type == float.class || type == Float.class) {
+			return n.floatValue();
+		}
+		if (type == short.class || type == Short.class) {
+			return n.shortValue();
+		}
+		if (type == byte.class || type == Byte.class) {
+			return n.byteValue();
+		}
+		if (type == BigDecimal.class) {
+			return new BigDecimal(n.toString());
+		}
+		if (type == BigInteger.class) {
+			return new BigDecimal(n.toString()).toBigInteger();
+		}
+		return value;
+	}
+}
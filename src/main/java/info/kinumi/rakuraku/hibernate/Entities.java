@@ -0,0 +1,106 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.EntityMode;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.util.IdentityMap;
+
+/**
+ * エンティティのプロパティへのアクセス
+ * 
+ * @author kunimi.ikeda
+ */
+class Entities {
+
+	/**
+	 * インスタンス化しない
+	 */
+	private Entities() {
+	}
+
+	/**
+	 * エンティティのメタデータを取得する
+	 * 
+	 * @param sf
+	 * @param klass
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             マッピングされていないクラスの場合
+	 */
+	static ClassMetadata getMetadata(SessionFactory sf, Class<?> klass) {
+		ClassMetadata metadata = sf.getClassMetadata(klass);
+		if (metadata == null) {
+			throw new IllegalArgumentException("not an entity: " + klass.getName());
+		}
+		return metadata;
+	}
+
+	/**
+	 * 識別子を取得する
+	 * 
+	 * プロキシは初期化せずに識別子を取得します。
+	 * 
+	 * @param session
+	 * @param entity
+	 * @return
+	 */
+	static Object getIdentifier(SessionImplementor session, Object entity) {
+		if (entity instanceof HibernateProxy) {
+			return ((HibernateProxy) entity).getHibernateLazyInitializer().getIdentifier();
+		}
+		return getMetadata(session.getFactory(), entity.getClass()).getIdentifier(entity, session);
+	}
+
+	/**
+	 * プロパティ (識別子を含む) の値を取得する
+	 * 
+	 * @param session
+	 * @param entity
+	 * @param property
+	 * @return
+	 */
+	static Object getProperty(SessionImplementor session, Object entity, String property) {
+		ClassMetadata metadata = getMetadata(session.getFactory(), Hibernate.getClass(entity));
+		if (property.equals(metadata.getIdentifierPropertyName())) {
+			return getIdentifier(session, entity);
+		}
+		return metadata.getPropertyValue(entity, property, EntityMode.POJO);
+	}
+
+	/**
+	 * セッションにあるエンティティを取得する
+	 * 
+	 * @param session
+	 * @return
+	 */
+	static Set<Object> managedEntities(Session session) {
+		Set<Object> entities = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		for (Map.Entry<?, ?> e : IdentityMap.concurrentEntries(((SessionImplementor) session).getPersistenceContext().getEntityEntries())) {
+			entities.add(e.getKey());
+		}
+		return entities;
+	}
+
+	/**
+	 * 指定したもの以外のエンティティを evict する
+	 * 
+	 * @param session
+	 * @param keep
+	 */
+	static void evictExcept(Session session, Set<Object> keep) {
+		for (Map.Entry<?, ?> e : IdentityMap.concurrentEntries(((SessionImplementor) session).getPersistenceContext().getEntityEntries())) {
+			if (!keep.contains(e.getKey())) {
+				session.evict(e.getKey());
+			}
+		}
+	}
+}
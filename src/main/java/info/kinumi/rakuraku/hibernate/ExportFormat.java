@@ -0,0 +1,97 @@
+package info.kinumi.rakuraku.hibernate;
+
+/**
+ * exportTo() の形式
+ * 
+ * @author kunimi.ikeda
+ */
+public enum ExportFormat {
+
+	/**
+	 * カンマ区切り (RFC 4180, 必要な場合のみ "" で囲む, null は引用符のない空)
+	 */
+	CSV {
+		@Override
+		void appendField(StringBuilder sb, String value) {
+			boolean quote = value.isEmpty();
+			for (int i = 0; i < value.length() && !quote; i++) {
+				char c = value.charAt(i);
+				quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+			}
+			if (!quote) {
+				sb.append(value);
+				return;
+			}
+			sb.append('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"') {
+					sb.append('"');
+				}
+				sb.append(c);
+			}
+			sb.append('"');
+		}
+
+		@Override
+		void appendNull(StringBuilder sb) {
+		}
+	},
+
+	/**
+	 * タブ区切り (タブ, 改行, \ は \t, \n, \r, \\ にエスケープ, null は \N)
+	 */
+	TSV {
+		@Override
+		void appendField(StringBuilder sb, String value) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				switch (c) {
+				case '\t':
+					sb.append("\\t");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				default:
+					sb.append(c);
+				}
+			}
+		}
+
+		@Override
+		void appendNull(StringBuilder sb) {
+			sb.append("\\N");
+		}
+	};
+
+	/**
+	 * 区切り文字
+	 * 
+	 * @return
+	 */
+	char getDelimiter() {
+		return this == CSV ? ',' : '\t';
+	}
+
+	/**
+	 * 1フィールドを追加する
+	 * 
+	 * @param sb
+	 * @param value
+	 */
+	abstract void appendField(StringBuilder sb, String value);
+
+	/**
+	 * null のフィールドを追加する
+	 * 
+	 * @param sb
+	 */
+	abstract void appendNull(StringBuilder sb);
+}
@@ -0,0 +1,201 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * exportTo() の出力
+ * 
+ * 1行ずつ StringBuilder に組み立て、使い回すダイレクト ByteBuffer に UTF-8 でエンコードして
+ * チャネルに書き込みます。メモリ使用量は行数によりません。
+ * 
+ * @author kunimi.ikeda
+ */
+class ExportWriter implements AutoCloseable {
+
+	/**
+	 * バッファのサイズ
+	 */
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * 文字コード
+	 */
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * 出力先
+	 */
+	final WritableByteChannel _channel;
+
+	/**
+	 * close() で出力先も閉じるか
+	 */
+	final boolean _closeChannel;
+
+	/**
+	 * 形式
+	 */
+	final ExportFormat _format;
+
+	/**
+	 * エンコーダ
+	 */
+	final CharsetEncoder _encoder = UTF_8.newEncoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/**
+	 * 出力バッファ
+	 */
+	final ByteBuffer _buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	/**
+	 * 1行のバッファ
+	 */
+	final StringBuilder _line = new StringBuilder(256);
+
+	/**
+	 * 書き込んだ行数 (ヘッダを除く)
+	 */
+	long _rows;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param channel
+	 * @param closeChannel
+	 * @param format
+	 */
+	ExportWriter(WritableByteChannel channel, boolean closeChannel, ExportFormat format) {
+		_channel = channel;
+		_closeChannel = closeChannel;
+		_format = format;
+	}
+
+	/**
+	 * ファイルに書き込む (既存のファイルは上書き)
+	 * 
+	 * @param path
+	 * @param format
+	 * @return
+	 * @throws IOException
+	 */
+	static ExportWriter open(Path path, ExportFormat format) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		return new ExportWriter(channel, true, format);
+	}
+
+	/**
+	 * ヘッダ行を書き込む
+	 * 
+	 * @param names
+	 * @throws IOException
+	 */
+	void writeHeader(String[] names) throws IOException {
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				_line.append(_format.getDelimiter());
+			}
+			_format.appendField(_line, names[i]);
+		}
+		endLine();
+	}
+
+	/**
+	 * フィールドを追加する
+	 * 
+	 * @param index
+	 *            行の中の位置
+	 * @param value
+	 *            null は空文字列と区別して書き込みます
+	 */
+	void field(int index, String value) {
+		if (index > 0) {
+			_line.append(_format.getDelimiter());
+		}
+		if (value != null) {
+			_format.appendField(_line, value);
+		}
+		else {
+			_format.appendNull(_line);
+		}
+	}
+
+	/**
+	 * 行を書き込む
+	 * 
+	 * @throws IOException
+	 */
+	void endRow() throws IOException {
+		endLine();
+		_rows++;
+	}
+
+	/**
+	 * 改行してバッファにエンコードする
+	 * 
+	 * @throws IOException
+	 */
+	void endLine() throws IOException {
+		_line.append('\n');
+		CharBuffer chars = CharBuffer.wrap(_line);
+		while (true) {
+			CoderResult result = _encoder.encode(chars, _buffer, false);
+			if (result.isOverflow()) {
+				drain();
+			}
+			else if (result.isUnderflow()) {
+				break;
+			}
+			else {
+				throw new CharacterCodingException();
+			}
+		}
+		_line.setLength(0);
+	}
+
+	/**
+	 * バッファをチャネルに書き込む
+	 * 
+	 * @throws IOException
+	 */
+	void drain() throws IOException {
+		_buffer.flip();
+		while (_buffer.hasRemaining()) {
+			_channel.write(_buffer);
+		}
+		_buffer.clear();
+	}
+
+	/**
+	 * 書き込んだ行数
+	 * 
+	 * @return
+	 */
+	long getRows() {
+		return _rows;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			drain();
+		}
+		finally {
+			if (_closeChannel) {
+				_channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.EntityMode;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.action.BulkOperationCleanupAction;
+import org.hibernate.engine.QueryParameters;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.engine.TypedValue;
+import org.hibernate.engine.query.HQLQueryPlan;
+import org.hibernate.event.EventSource;
+import org.hibernate.exception.JDBCExceptionHelper;
+import org.hibernate.hql.QueryTranslator;
+import org.hibernate.hql.ast.QueryTranslatorImpl;
+import org.hibernate.param.NamedParameterSpecification;
+import org.hibernate.param.ParameterSpecification;
+import org.hibernate.type.StandardBasicTypes;
+import org.hibernate.type.Type;
+
+/**
+ * update / delete のHQLを1回だけ翻訳し、複数のパラメータセットをJDBCバッチで実行する
+ * 
+ * @author kunimi.ikeda
+ */
+class HQLBatch {
+
+	/**
+	 * インスタンス化しない
+	 */
+	private HQLBatch() {
+	}
+
+	/**
+	 * バッチを実行する
+	 * 
+	 * hibernate.jdbc.batch_size 件 (未設定の場合は {@value Tx#DEFAULT_BATCH_SIZE} 件) ごとに
+	 * executeBatch() します。
+	 * 1つのSQLに翻訳できない場合 (複数テーブルにまたがるエンティティなど) は
+	 * パラメータセットごとに executeUpdate() します。
+	 * 
+	 * @param session
+	 * @param hql
+	 * @param batch
+	 *            パラメータセットのリスト
+	 * @return パラメータセットごとの更新件数
+	 */
+	static int[] execute(SessionImplementor session, String hql, List<Map<String, Object>> batch) {
+		if (batch.isEmpty()) {
+			return new int[0];
+		}
+		SessionFactoryImplementor factory = session.getFactory();
+		HQLQueryPlan plan = factory.getQueryPlanCache().getHQLQueryPlan(hql, false, Collections.EMPTY_MAP);
+		QueryTranslator[] translators = plan.getTranslators();
+		String[] sqls = plan.getSqlStrings();
+		if (translators.length != 1 || sqls.length != 1 || !(translators[0] instanceof QueryTranslatorImpl)) {
+			int[] counts = new int[batch.size()];
+			for (int i = 0; i < counts.length; i++) {
+				Query query = session instanceof Session
+					? ((Session) session).createQuery(hql)
+					: ((StatelessSession) session).createQuery(hql);
+				query.setProperties(batch.get(i));
+				counts[i] = query.executeUpdate();
+			}
+			return counts;
+		}
+		List<?> specs = ((QueryTranslatorImpl) translators[0]).getSqlAST().getWalker().getParameters();
+		String sql = sqls[0];
+		int batchSize = factory.getSettings().getJdbcBatchSize();
+		if (batchSize <= 0) {
+			batchSize = Tx.DEFAULT_BATCH_SIZE;
+		}
+		int[] counts = new int[batch.size()];
+		try {
+			PreparedStatement ps = session.connection().prepareStatement(sql);
+			try {
+				int executed = 0;
+				for (int i = 0; i < counts.length; i++) {
+					QueryParameters queryParameters = new QueryParameters();
+					queryParameters.setNamedParameters(toTypedValues(factory, specs, batch.get(i)));
+					int position = 1;
+					for (Object spec : specs) {
+						position += ((ParameterSpecification) spec).bind(ps, queryParameters, session, position);
+					}
+					ps.addBatch();
+					if ((i + 1) % batchSize == 0 || i + 1 == counts.length) {
+						int[] chunk = ps.executeBatch();
+						System.arraycopy(chunk, 0, counts, executed, chunk.length);
+						executed += chunk.length;
+					}
+				}
+				return counts;
+			}
+			finally {
+				ps.close();
+			}
+		}
+		catch (SQLException e) {
+			throw JDBCExceptionHelper.convert(factory.getSQLExceptionConverter(), e, "could not execute batch", sql);
+		}
+		finally {
+			BulkOperationCleanupAction action = new BulkOperationCleanupAction(session, plan.getQuerySpaces());
+			if (session instanceof EventSource) {
+				((EventSource) session).getActionQueue().addAction(action);
+			}
+			else {
+				action.getAfterTransactionCompletionProcess().doAfterTransactionCompletion(true, session);
+			}
+		}
+	}
+
+	/**
+	 * パラメータに型を付ける
+	 * 
+	 * @param factory
+	 * @param specs
+	 * @param params
+	 * @return
+	 */
+	static Map<String, TypedValue> toTypedValues(SessionFactoryImplementor factory, List<?> specs, Map<String, Object> params) {
+		Map<String, TypedValue> typedValues = new HashMap<>();
+		for (Object o : specs) {
+			if (!(o instanceof NamedParameterSpecification)) {
+				continue;
+			}
+			NamedParameterSpecification spec = (NamedParameterSpecification) o;
+			String name = spec.getName();
+			if (!params.containsKey(name)) {
+				throw new IllegalArgumentException("no value for parameter: " + name);
+			}
+			Object value = params.get(name);
+			if (value instanceof Collection) {
+				throw new IllegalArgumentException("collection parameter is not supported in batch: " + name);
+			}
+			Type type = spec.getExpectedType();
+			if (type == null) {
+				type = value != null ? factory.getTypeResolver().heuristicType(value.getClass().getName()) : null;
+				if (type == null) {
+					type = StandardBasicTypes.SERIALIZABLE;
+				}
+			}
+			typedValues.put(name, new TypedValue(type, value, EntityMode.POJO));
+		}
+		return typedValues;
+	}
+
+	/**
+	 * パラメータセットのリストに追加する
+	 * 
+	 * @param batch
+	 * @param params
+	 * @return
+	 */
+	static List<Map<String, Object>> add(List<Map<String, Object>> batch, Map<String, Object> params) {
+		if (batch == null) {
+			batch = new ArrayList<>();
+		}
+		batch.add(new HashMap<>(params));
+		return batch;
+	}
+}
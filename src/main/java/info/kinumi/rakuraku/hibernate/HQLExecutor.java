@@ -145,11 +145,20 @@ public class HQLExecutor<T> {
 	 */
 	public String getHQL() {
 		StringBuilder hql = new StringBuilder(100);
+		appendFromWhere(hql);
+		hql.append(_orderBy);
+		return hql.toString();
+	}
+
+	/**
+	 * from句とwhere句を追加する
+	 * 
+	 * @param hql
+	 */
+	void appendFromWhere(StringBuilder hql) {
 		hql.append("from ");
 		hql.append(_klass.getCanonicalName());
 		hql.append(_where);
-		hql.append(_orderBy);
-		return hql.toString();
 	}
 
 	/**
@@ -168,6 +177,93 @@ public class HQLExecutor<T> {
 		return (T) query.uniqueResult();
 	}
 
+	/**
+	 * カラムを指定して Object[] で取得する
+	 * 
+	 * @param columns
+	 * @return
+	 */
+	public RakuRakuProjection<Object[]> select(String... columns) {
+		return new RakuRakuProjection<Object[]>(getSelectHQL(Joiner.on(", ").join(columns)), columns.length == 1, _limit, _offset, _params, _session, null);
+	}
+
+	/**
+	 * 1カラムを指定して値で取得する
+	 * 
+	 * @param type
+	 * @param column
+	 * @return
+	 */
+	public <R> RakuRakuProjection<R> select(Class<R> type, String column) {
+		return new RakuRakuProjection<R>(getSelectHQL(column), false, _limit, _offset, _params, _session, null);
+	}
+
+	/**
+	 * カラムを指定して DTO のコンストラクタで取得する
+	 * 
+	 * @param dto
+	 * @param columns
+	 * @return
+	 */
+	public <R> RakuRakuProjection<R> selectNew(Class<R> dto, String... columns) {
+		StringBuilder select = new StringBuilder(100);
+		select.append("new ");
+		select.append(dto.getName());
+		select.append("(");
+		select.append(Joiner.on(", ").join(columns));
+		select.append(")");
+		return new RakuRakuProjection<R>(getSelectHQL(select.toString()), false, _limit, _offset, _params, _session, null);
+	}
+
+	/**
+	 * select句付きのHQLを取得する
+	 * 
+	 * @param select
+	 * @return
+	 */
+	String getSelectHQL(String select) {
+		StringBuilder hql = new StringBuilder(100);
+		hql.append("select ");
+		hql.append(select);
+		hql.append(" ");
+		appendFromWhere(hql);
+		hql.append(_orderBy);
+		return hql.toString();
+	}
+
+	/**
+	 * 件数を取得する
+	 * 
+	 * orderBy, limit, offset は無視します。
+	 * 
+	 * @return
+	 */
+	public long count() {
+		StringBuilder hql = new StringBuilder(100);
+		hql.append("select count(*) ");
+		appendFromWhere(hql);
+		Query query = _session.createQuery(hql.toString());
+		query.setProperties(_params);
+		return ((Number) query.uniqueResult()).longValue();
+	}
+
+	/**
+	 * 1件でも存在するか
+	 * 
+	 * エンティティはロードせず、定数を1件だけ取得します。
+	 * 
+	 * @return
+	 */
+	public boolean exists() {
+		StringBuilder hql = new StringBuilder(100);
+		hql.append("select 1 ");
+		appendFromWhere(hql);
+		Query query = _session.createQuery(hql.toString());
+		query.setMaxResults(1);
+		query.setProperties(_params);
+		return query.uniqueResult() != null;
+	}
+
 	/**
 	 * データのリストを取得する
 	 * 
@@ -0,0 +1,166 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.hibernate.dialect.DB2Dialect;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.IngresDialect;
+import org.hibernate.dialect.Oracle8iDialect;
+import org.hibernate.dialect.Oracle9Dialect;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.engine.SessionImplementor;
+
+/**
+ * in (:list) パラメータの分割とパディング
+ * 
+ * リストの長さごとに別のSQLになり、Hibernate と DB のステートメントキャッシュを使い切ってしまうので、
+ * 長さを2のべき乗に揃えます (最後の要素を繰り返すので結果は変わりません)。
+ * 
+ * @author kunimi.ikeda
+ */
+class InLists {
+
+	/**
+	 * インスタンス化しない
+	 */
+	private InLists() {
+	}
+
+	/**
+	 * 分割が必要なコレクションのパラメータ名を取得する
+	 * 
+	 * @param params
+	 * @param chunkSize
+	 * @return 分割不要なら null
+	 * @throws IllegalStateException
+	 *             分割が必要なパラメータが複数ある場合
+	 */
+	static String findOversized(Map<String, Object> params, int chunkSize) {
+		String found = null;
+		for (Entry<String, Object> e : params.entrySet()) {
+			if (e.getValue() instanceof Collection && ((Collection<?>) e.getValue()).size() > chunkSize) {
+				if (found != null) {
+					throw new IllegalStateException("only one collection parameter can exceed chunk size: " + found + ", " + e.getKey());
+				}
+				found = e.getKey();
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * コレクションのパラメータを重複除去して2のべき乗の長さに揃える
+	 * 
+	 * @param params
+	 * @param chunkSize
+	 *            パディング後の長さの上限
+	 * @return 揃えたパラメータマップ (コレクションがなければ params そのもの)
+	 */
+	static Map<String, Object> pad(Map<String, Object> params, int chunkSize) {
+		Map<String, Object> padded = null;
+		for (Entry<String, Object> e : params.entrySet()) {
+			if (e.getValue() instanceof Collection && !((Collection<?>) e.getValue()).isEmpty()) {
+				if (padded == null) {
+					padded = new HashMap<>(params);
+				}
+				padded.put(e.getKey(), pad(new ArrayList<Object>(new LinkedHashSet<Object>((Collection<?>) e.getValue())), chunkSize));
+			}
+		}
+		return padded != null ? padded : params;
+	}
+
+	/**
+	 * リストを2のべき乗の長さに揃える
+	 * 
+	 * @param values
+	 * @param chunkSize
+	 *            パディング後の長さの上限
+	 * @return
+	 */
+	static List<Object> pad(List<Object> values, int chunkSize) {
+		int size = 1;
+		while (size < values.size()) {
+			size <<= 1;
+		}
+		size = Math.min(size, Math.max(chunkSize, values.size()));
+		Object last = values.get(values.size() - 1);
+		while (values.size() < size) {
+			values.add(last);
+		}
+		return values;
+	}
+
+	/**
+	 * 重複除去したコレクションを chunkSize ごとに分割する
+	 * 
+	 * @param values
+	 * @param chunkSize
+	 * @return
+	 */
+	static List<List<Object>> split(Collection<?> values, int chunkSize) {
+		List<Object> distinct = new ArrayList<Object>(new LinkedHashSet<Object>(values));
+		List<List<Object>> chunks = new ArrayList<>();
+		for (int i = 0; i < distinct.size(); i += chunkSize) {
+			chunks.add(new ArrayList<>(distinct.subList(i, Math.min(i + chunkSize, distinct.size()))));
+		}
+		return chunks;
+	}
+
+	/**
+	 * DB の既定の順序で null が最小の値として並ぶか
+	 * 
+	 * Oracle, PostgreSQL, DB2 (Derby), Ingres は null を最大の値として並べます (asc で最後)。
+	 * 
+	 * @param dialect
+	 * @return
+	 */
+	static boolean isNullLowest(Dialect dialect) {
+		return !(dialect instanceof Oracle8iDialect
+			|| dialect instanceof Oracle9Dialect
+			|| dialect instanceof PostgreSQLDialect
+			|| dialect instanceof DB2Dialect
+			|| dialect instanceof IngresDialect);
+	}
+
+	/**
+	 * order by のプロパティでエンティティを比較する
+	 * 
+	 * Comparable なプロパティに限ります。null は DB と同じ位置に並べます。
+	 * 
+	 * @param session
+	 * @param properties
+	 * @param desc
+	 * @return
+	 */
+	static Comparator<Object> orderBy(final SessionImplementor session, final String[] properties, final boolean[] desc) {
+		final boolean nullLowest = isNullLowest(session.getFactory().getDialect());
+		return new Comparator<Object>() {
+			@Override
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			public int compare(Object o1, Object o2) {
+				for (int i = 0; i < properties.length; i++) {
+					Comparable v1 = (Comparable) Entities.getProperty(session, o1, properties[i]);
+					Comparable v2 = (Comparable) Entities.getProperty(session, o2, properties[i]);
+					int c;
+					if (v1 == null || v2 == null) {
+						c = v1 == v2 ? 0 : (v1 == null) == nullLowest ? -1 : 1;
+					}
+					else {
+						c = v1.compareTo(v2);
+					}
+					if (c != 0) {
+						return desc[i] ? -c : c;
+					}
+				}
+				return 0;
+			}
+		};
+	}
+}
@@ -0,0 +1,73 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * キーセットページングの1ページ
+ * 
+ * <code>
+ * KeysetPage<A> page = tx.from(A.class).orderBy("b", "id desc").limit(100).page();
+ * while (page.hasNext()) {
+ *     page = tx.from(A.class).orderBy("b", "id desc").limit(100).seek(page.getNextKey()).page();
+ * }
+ * </code>
+ * 
+ * @param <T>
+ *            対象エンティティクラス
+ * @author kunimi.ikeda
+ */
+public class KeysetPage<T> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * このページの行
+	 */
+	List<T> _rows;
+
+	/**
+	 * 次のページのキー (最後のページなら null)
+	 */
+	Object[] _nextKey;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param rows
+	 * @param nextKey
+	 */
+	public KeysetPage(List<T> rows, Object[] nextKey) {
+		_rows = rows;
+		_nextKey = nextKey;
+	}
+
+	/**
+	 * このページの行を取得する
+	 * 
+	 * @return
+	 */
+	public List<T> getRows() {
+		return _rows;
+	}
+
+	/**
+	 * 次のページのキーを取得する
+	 * 
+	 * seek() にそのまま渡せます。最後のページなら null です。
+	 * 
+	 * @return
+	 */
+	public Object[] getNextKey() {
+		return _nextKey;
+	}
+
+	/**
+	 * 次のページがあるか
+	 * 
+	 * @return
+	 */
+	public boolean hasNext() {
+		return _nextKey != null;
+	}
+}
@@ -0,0 +1,19 @@
+package info.kinumi.rakuraku.hibernate;
+
+/**
+ * 一括ロードの進捗を受け取るリスナ
+ * 
+ * @author kunimi.ikeda
+ */
+public interface LoadListener {
+
+	/**
+	 * 一定行数を処理するごとに呼ばれる
+	 * 
+	 * @param loaded
+	 *            ロードした行数
+	 * @param rejected
+	 *            不正で処理しなかった行数
+	 */
+	void onProgress(long loaded, long rejected);
+}
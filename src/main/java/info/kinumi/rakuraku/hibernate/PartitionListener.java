@@ -0,0 +1,25 @@
+package info.kinumi.rakuraku.hibernate;
+
+/**
+ * パーティション分割スキャンの進捗を受け取るリスナ
+ * 
+ * 各パーティションのスレッドから呼ばれるので、スレッドセーフに実装してください。
+ * 
+ * @author kunimi.ikeda
+ */
+public interface PartitionListener {
+
+	/**
+	 * 一定行数を処理するごとに呼ばれる
+	 * 
+	 * @param partition
+	 */
+	void onProgress(PartitionResult partition);
+
+	/**
+	 * パーティションの処理が終了 (成功または失敗) したときに呼ばれる
+	 * 
+	 * @param partition
+	 */
+	void onFinish(PartitionResult partition);
+}
@@ -0,0 +1,123 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * パーティションごとの処理結果
+ * 
+ * @author kunimi.ikeda
+ */
+public class PartitionResult {
+
+	/**
+	 * パーティション番号
+	 */
+	int _index;
+
+	/**
+	 * キーの下限 (含む)
+	 */
+	Object _from;
+
+	/**
+	 * キーの上限 (含む)
+	 */
+	Object _to;
+
+	/**
+	 * 処理した行数
+	 */
+	volatile long _rows = 0;
+
+	/**
+	 * 処理時間 (ナノ秒)
+	 */
+	volatile long _elapsedNanos = 0;
+
+	/**
+	 * 失敗した場合の例外
+	 */
+	volatile Throwable _failure = null;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param index
+	 * @param from
+	 * @param to
+	 */
+	PartitionResult(int index, Object from, Object to) {
+		_index = index;
+		_from = from;
+		_to = to;
+	}
+
+	/**
+	 * パーティション番号を取得する
+	 * 
+	 * @return
+	 */
+	public int getIndex() {
+		return _index;
+	}
+
+	/**
+	 * キーの下限 (含む) を取得する
+	 * 
+	 * @return
+	 */
+	public Object getFrom() {
+		return _from;
+	}
+
+	/**
+	 * キーの上限 (含む) を取得する
+	 * 
+	 * @return
+	 */
+	public Object getTo() {
+		return _to;
+	}
+
+	/**
+	 * 処理した行数を取得する
+	 * 
+	 * @return
+	 */
+	public long getRows() {
+		return _rows;
+	}
+
+	/**
+	 * 処理時間 (ミリ秒) を取得する
+	 * 
+	 * @return
+	 */
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(_elapsedNanos);
+	}
+
+	/**
+	 * 失敗した場合の例外を取得する
+	 * 
+	 * @return 成功した場合は null
+	 */
+	public Throwable getFailure() {
+		return _failure;
+	}
+
+	/**
+	 * 成功したか
+	 * 
+	 * @return
+	 */
+	public boolean isSuccess() {
+		return _failure == null;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("partition %d [%s, %s]: %d rows in %d ms%s", _index, _from, _to, _rows, getElapsedMillis(),
+			_failure != null ? " failed: " + _failure : "");
+	}
+}
@@ -0,0 +1,287 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.hibernate.Query;
+import org.hibernate.SessionFactory;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * パーティション分割した並列スキャン
+ * 
+ * 整数のキーの範囲を N 個に分割し、パーティションごとに別スレッド、別セッションの
+ * 読み取り専用トランザクションとカーソルで処理します。
+ * where, seek, fetch などの finder の条件はそのまま引き継ぎます。limit, offset は指定できません。
+ * スレッド数はパーティション数と hibernate.connection.pool_size の小さい方です。
+ * 
+ * <code>
+ * List<PartitionResult> results = tx.from(A.class)
+ *     .where("a = :a")
+ *     .param("a", 1)
+ *     .partitionBy("id", 16)
+ *     .parallelForEach(handler);
+ * // => query by HQL: [select min(id), max(id) from A where a = 1]
+ * //    and 16 x [from A where a = 1 and (id >= :from and id <= :to)] in parallel
+ * </code>
+ * 
+ * handler は複数のスレッドから呼ばれるのでスレッドセーフに実装してください。
+ * 渡されるエンティティは読み取り専用で、カーソルのセッションクリアで detach されます。
+ * writable() を指定すると読み書きできるトランザクションで処理し、エンティティの変更は
+ * セッションクリアの前とパーティションの終了時に flush, コミットします (失敗したパーティションはロールバック)。
+ * 
+ * @param <T>
+ *            対象エンティティクラス
+ * @author kunimi.ikeda
+ */
+public class PartitionedScan<T> {
+
+	/**
+	 * 元の finder
+	 */
+	RakuRakuFinder<T> _finder;
+
+	/**
+	 * パーティションのキー (数値のプロパティ)
+	 */
+	String _key;
+
+	/**
+	 * パーティション数
+	 */
+	int _partitions;
+
+	/**
+	 * 進捗のリスナ
+	 */
+	PartitionListener _listener = null;
+
+	/**
+	 * 進捗を通知する間隔 (行数)
+	 */
+	long _progressEvery = 0;
+
+	/**
+	 * 読み書きできるトランザクションで処理するか
+	 */
+	boolean _writable = false;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param finder
+	 * @param key
+	 * @param partitions
+	 */
+	PartitionedScan(RakuRakuFinder<T> finder, String key, int partitions) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("partitions must be positive: " + partitions);
+		}
+		if (finder._limit != null || finder._offset != null) {
+			throw new IllegalStateException("partitionBy() does not support limit/offset");
+		}
+		_finder = finder;
+		_key = key;
+		_partitions = partitions;
+	}
+
+	/**
+	 * 進捗のリスナ
+	 * 
+	 * @param progressEvery
+	 *            onProgress を呼ぶ間隔 (行数)
+	 * @param listener
+	 * @return
+	 */
+	public PartitionedScan<T> listener(long progressEvery, PartitionListener listener) {
+		_progressEvery = progressEvery;
+		_listener = listener;
+		return this;
+	}
+
+	/**
+	 * 読み書きできるトランザクションで処理する
+	 * 
+	 * パーティションごとにコミットします。
+	 * 
+	 * @return
+	 */
+	public PartitionedScan<T> writable() {
+		_writable = true;
+		return this;
+	}
+
+	/**
+	 * パーティションごとに並列に1行ずつ処理する
+	 * 
+	 * 失敗したパーティションがあっても他のパーティションは処理を続けます。
+	 * 失敗は PartitionResult.getFailure() で確認してください。
+	 * Error (OutOfMemoryError など) は全パーティションの終了後にそのまま投げます。
+	 * 
+	 * @param handler
+	 * @return パーティションごとの結果
+	 */
+	public List<PartitionResult> parallelForEach(final RowHandler<? super T> handler) {
+		List<PartitionResult> partitions = split();
+		if (partitions.isEmpty()) {
+			return partitions;
+		}
+		SessionFactory sf = _finder.getSessionFactory();
+		List<ListenableFuture<Object>> futures = new ArrayList<>();
+		try (TxExecutor executor = new TxExecutor(sf, Math.min(partitions.size(), TxExecutor.getPoolSize(sf)))) {
+			for (final PartitionResult partition : partitions) {
+				TxCallback<Object> callback = new TxCallback<Object>() {
+					@Override
+					public Object call(Tx tx) {
+						scan(tx, partition, handler);
+						return null;
+					}
+				};
+				futures.add(_writable ? executor.submit(callback) : executor.read(callback));
+			}
+			Futures.successfulAsList(futures).get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return partitions;
+		}
+		catch (ExecutionException e) {
+			// successfulAsList does not fail
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+				if (partitions.get(i)._failure == null) {
+					partitions.get(i)._failure = e.getCause();
+				}
+			}
+		}
+		return partitions;
+	}
+
+	/**
+	 * キーの範囲を分割する
+	 * 
+	 * @return
+	 */
+	List<PartitionResult> split() {
+		String key = _finder.rootProperty(_key);
+		StringBuilder hql = new StringBuilder(100);
+		hql.append("select min(").append(key).append("), max(").append(key).append(") ");
+		_finder.appendFromWhere(hql);
+		Query query = _finder.createQuery(hql.toString());
+		query.setProperties(_finder._params);
+		Object[] range = (Object[]) query.uniqueResult();
+		if (range == null || range[0] == null) {
+			return Collections.emptyList();
+		}
+		Number min = (Number) range[0];
+		long lo = toLong(min);
+		long hi = toLong((Number) range[1]);
+		long width = (hi - lo) / _partitions + 1;
+		List<PartitionResult> partitions = new ArrayList<>();
+		for (long from = lo; from <= hi; from += width) {
+			long to = Math.min(hi, from + width - 1);
+			partitions.add(new PartitionResult(partitions.size(), toKeyType(from, min), toKeyType(to, min)));
+			if (to == hi) {
+				break;
+			}
+		}
+		return partitions;
+	}
+
+	/**
+	 * 1パーティションをカーソルで処理する
+	 * 
+	 * @param tx
+	 * @param partition
+	 * @param handler
+	 */
+	void scan(Tx tx, PartitionResult partition, RowHandler<? super T> handler) {
+		long start = System.nanoTime();
+		try {
+			RakuRakuFinder<T> finder = tx.from(_finder._klass).copyClauses(_finder);
+			StringBuilder where = new StringBuilder(_finder._where);
+			where.append(_finder._where.isEmpty() ? " where (" : " and (");
+			String key = _finder.rootProperty(_key);
+			where.append(key).append(" >= :_partitionFrom and ").append(key).append(" <= :_partitionTo) ");
+			finder._where = where.toString();
+			finder._hql = null;
+			finder.param("_partitionFrom", partition._from);
+			finder.param("_partitionTo", partition._to);
+			try (RakuRakuCursor<T> cursor = finder.cursor()) {
+				while (cursor.hasNext()) {
+					handler.handle(cursor.next());
+					partition._rows = cursor.getCount();
+					if (_listener != null && _progressEvery > 0 && partition._rows % _progressEvery == 0) {
+						_listener.onProgress(partition);
+					}
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			partition._failure = e;
+			throw e;
+		}
+		finally {
+			partition._elapsedNanos = System.nanoTime() - start;
+			if (_listener != null) {
+				_listener.onFinish(partition);
+			}
+		}
+	}
+
+	/**
+	 * 整数のキーを long に変換する
+	 * 
+	 * @param value
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             整数でないキーの場合
+	 */
+	static long toLong(Number value) {
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return value.longValue();
+		}
+		if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+			return value.longValue();
+		}
+		throw new IllegalArgumentException("partition key must be an integral type within long range: " + value.getClass().getName() + " " + value);
+	}
+
+	/**
+	 * キーと同じ型の数値に変換する
+	 * 
+	 * @param value
+	 * @param sample
+	 * @return
+	 */
+	static Object toKeyType(long value, Number sample) {
+		if (sample instanceof Integer) {
+			return (int) value;
+		}
+		if (sample instanceof Short) {
+			return (short) value;
+		}
+		if (sample instanceof Byte) {
+			return (byte) value;
+		}
+		if (sample instanceof BigInteger) {
+			return BigInteger.valueOf(value);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,361 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.SessionFactoryObserver;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.util.PropertiesHelper;
+import org.hibernate.util.StringHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * 起動時にコンパイルしておくクエリの登録簿
+ * 
+ * アプリケーションが使う RakuRakuQuery や HQL を登録しておき、Hibernate のクエリプランキャッシュに載せます。
+ * デプロイ直後の最初のリクエストで HQL の解析と変換のコストを払わずに済み、不正な HQL も起動時に分かります。
+ * 
+ * RakuRakuQuery は list() / uniq() の HQL に加えて count() と exists() の HQL も、
+ * in (:list) のパラメータは Hibernate が展開する 2 のべき乗の長さ (既定で 16 まで) の HQL もコンパイルします。
+ * select() の射影はコンパイルしません。
+ * 
+ * クエリの定数は static 初期化で登録されるので、SessionFactory の作成時にはまだ登録されていないことがあります。
+ * オブザーバーとして設定した SessionFactory には、作成後に登録したクエリもその場でコンパイルします。
+ * 
+ * <code>
+ * Configuration cfg = new Configuration().configure();
+ * cfg.setSessionFactoryObserver(QueryRegistry.getInstance());
+ * SessionFactory sf = cfg.buildSessionFactory();
+ * 
+ * static final RakuRakuQuery<A> FIND_ACTIVE = QueryRegistry.getInstance().register(
+ *     RakuRakuQuery.from(A.class).where("a = :a").orderBy("b"));
+ * // => 登録時に sf でコンパイル
+ * </code>
+ * 
+ * オブザーバーを使わない場合は、クエリの定数を持つクラスを初期化してから warmUp(sf) を呼び出します。
+ * 
+ * <code>
+ * SessionFactory sf = new Configuration().configure().buildSessionFactory();
+ * Class.forName(Queries.class.getName());
+ * QueryRegistry.getInstance().warmUp(sf).throwIfFailed();
+ * // => 登録済みのクエリを並列にコンパイル
+ * </code>
+ * 
+ * クエリプランキャッシュの強参照の件数 (hibernate.query.plan_cache_max_strong_references, 既定 128)
+ * より多く登録すると、古いプランは GC で破棄されることがあるので警告を出します。
+ * 
+ * @author kunimi.ikeda
+ */
+public class QueryRegistry implements SessionFactoryObserver {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * ロガー
+	 */
+	static final Logger LOG = LoggerFactory.getLogger(QueryRegistry.class);
+
+	/**
+	 * クエリプランキャッシュの強参照の件数の設定
+	 */
+	static final String PLAN_CACHE_STRONG_REFERENCES = "hibernate.query.plan_cache_max_strong_references";
+
+	/**
+	 * クエリプランキャッシュの強参照の既定の件数
+	 */
+	static final int DEFAULT_PLAN_CACHE_STRONG_REFERENCES = 128;
+
+	/**
+	 * in (:list) のパラメータをコンパイルする既定の最大の長さ
+	 */
+	static final int DEFAULT_MAX_IN_LIST_SIZE = 16;
+
+	/**
+	 * in (:list) のパラメータ
+	 */
+	static final Pattern IN_LIST = Pattern.compile("\\bin\\s*\\(\\s*:(\\w+)\\s*\\)", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * シングルトン
+	 */
+	static final QueryRegistry INSTANCE = new QueryRegistry();
+
+	/**
+	 * 登録されたクエリ
+	 */
+	final List<RakuRakuQuery<?>> _queries = new ArrayList<>();
+
+	/**
+	 * 登録された HQL
+	 */
+	final Set<String> _hqls = new LinkedHashSet<>();
+
+	/**
+	 * コンパイル済みのセッションファクトリ
+	 */
+	final Set<SessionFactory> _factories = Collections.newSetFromMap(new IdentityHashMap<SessionFactory, Boolean>());
+
+	/**
+	 * in (:list) のパラメータをコンパイルする最大の長さ
+	 */
+	int _maxInListSize = DEFAULT_MAX_IN_LIST_SIZE;
+
+	/**
+	 * インスタンスを取得する
+	 * 
+	 * @return
+	 */
+	public static QueryRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * クエリを登録する
+	 * 
+	 * コンパイル済みのセッションファクトリがあれば、その場でコンパイルします。
+	 * 
+	 * @param query
+	 * @return 登録したクエリ
+	 */
+	public <T> RakuRakuQuery<T> register(RakuRakuQuery<T> query) {
+		List<SessionFactory> factories;
+		synchronized (this) {
+			_queries.add(query);
+			factories = new ArrayList<>(_factories);
+		}
+		for (SessionFactory sf : factories) {
+			compileAll(sf, expand(sf, query));
+		}
+		return query;
+	}
+
+	/**
+	 * HQL を登録する
+	 * 
+	 * コンパイル済みのセッションファクトリがあれば、その場でコンパイルします。
+	 * 
+	 * @param hql
+	 * @return
+	 */
+	public QueryRegistry register(String hql) {
+		List<SessionFactory> factories;
+		synchronized (this) {
+			_hqls.add(hql);
+			factories = new ArrayList<>(_factories);
+		}
+		for (SessionFactory sf : factories) {
+			compileAll(sf, expand(hql));
+		}
+		return this;
+	}
+
+	/**
+	 * in (:list) のパラメータをコンパイルする最大の長さ
+	 * 
+	 * 長いリストは最初に使ったときにコンパイルされます。
+	 * 
+	 * @param maxInListSize
+	 * @return
+	 */
+	public synchronized QueryRegistry maxInListSize(int maxInListSize) {
+		_maxInListSize = maxInListSize;
+		return this;
+	}
+
+	/**
+	 * 登録されたクエリ数
+	 * 
+	 * @return
+	 */
+	public synchronized int size() {
+		return _queries.size() + _hqls.size();
+	}
+
+	/**
+	 * 登録されたクエリを並列にコンパイルする
+	 * 
+	 * スレッド数は CPU 数です。
+	 * 
+	 * @param sf
+	 * @return
+	 */
+	public WarmUpResult warmUp(SessionFactory sf) {
+		return warmUp(sf, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * 登録されたクエリを並列にコンパイルする
+	 * 
+	 * コンパイルできなかったクエリはエラーログに出力し、結果で返します。
+	 * 結果の件数は count() や in (:list) の長さごとに展開した HQL の件数です。
+	 * 以降に登録したクエリは、このセッションファクトリで登録時にコンパイルします。
+	 * 
+	 * @param sf
+	 * @param threads
+	 * @return
+	 */
+	public WarmUpResult warmUp(SessionFactory sf, int threads) {
+		long start = System.nanoTime();
+		final SessionFactoryImplementor factory = (SessionFactoryImplementor) sf;
+		List<RakuRakuQuery<?>> queries;
+		Set<String> hqls = new LinkedHashSet<>();
+		synchronized (this) {
+			_factories.add(sf);
+			queries = new ArrayList<>(_queries);
+			for (String hql : _hqls) {
+				hqls.addAll(expand(hql));
+			}
+		}
+		for (RakuRakuQuery<?> query : queries) {
+			hqls.addAll(expand(sf, query));
+		}
+		int strongReferences = PropertiesHelper.getInt(PLAN_CACHE_STRONG_REFERENCES, factory.getProperties(), DEFAULT_PLAN_CACHE_STRONG_REFERENCES);
+		if (hqls.size() > strongReferences) {
+			LOG.warn("{} queries registered but {} is {}; some plans may be evicted", new Object[] { hqls.size(), PLAN_CACHE_STRONG_REFERENCES, strongReferences });
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, hqls.size())),
+			new ThreadFactoryBuilder().setNameFormat("rakuraku-warmup-%d").setDaemon(true).build());
+		Map<String, Future<?>> futures = new LinkedHashMap<>();
+		try {
+			for (final String hql : hqls) {
+				futures.put(hql, executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						RakuRakuQuery.compile(factory, hql);
+						return null;
+					}
+				}));
+			}
+			int compiled = 0;
+			Map<String, Exception> failures = new LinkedHashMap<>();
+			for (Map.Entry<String, Future<?>> e : futures.entrySet()) {
+				try {
+					e.getValue().get();
+					compiled++;
+				}
+				catch (ExecutionException ex) {
+					Exception cause = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+					failures.put(e.getKey(), cause);
+					LOG.error("invalid query: " + e.getKey(), cause);
+				}
+			}
+			WarmUpResult result = new WarmUpResult(compiled, failures, System.nanoTime() - start);
+			LOG.info("warm-up: {}", result);
+			return result;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HibernateException(e);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * SessionFactory の作成時にコンパイルする
+	 */
+	@Override
+	public void sessionFactoryCreated(SessionFactory factory) {
+		warmUp(factory);
+	}
+
+	@Override
+	public synchronized void sessionFactoryClosed(SessionFactory factory) {
+		_factories.remove(factory);
+	}
+
+	/**
+	 * クエリの実行時の HQL に展開する
+	 * 
+	 * @param sf
+	 * @param query
+	 * @return list() / uniq(), count(), exists() の HQL
+	 */
+	Set<String> expand(SessionFactory sf, RakuRakuQuery<?> query) {
+		RakuRakuFinder<?> finder = query.prototype(sf);
+		Set<String> hqls = new LinkedHashSet<>();
+		hqls.addAll(expand(finder.getHQL()));
+		hqls.addAll(expand(finder.getCountHQL()));
+		hqls.addAll(expand(finder.getExistsHQL()));
+		return hqls;
+	}
+
+	/**
+	 * in (:list) のパラメータを Hibernate が展開する長さごとの HQL に展開する
+	 * 
+	 * 長さは InLists でパディングする 2 のべき乗です。
+	 * 
+	 * @param hql
+	 * @return 元の HQL と展開した HQL
+	 */
+	synchronized Set<String> expand(String hql) {
+		Set<String> hqls = new LinkedHashSet<>();
+		hqls.add(hql);
+		Matcher m = IN_LIST.matcher(hql);
+		while (m.find()) {
+			String name = m.group(1);
+			for (String base : new ArrayList<>(hqls)) {
+				for (int size = 1; size <= _maxInListSize; size *= 2) {
+					hqls.add(StringHelper.replace(base, ":" + name, expandParameterList(name, size), true));
+				}
+			}
+		}
+		return hqls;
+	}
+
+	/**
+	 * Hibernate が展開するパラメータリスト
+	 * 
+	 * @param name
+	 * @param size
+	 * @return :name0_, :name1_, ...
+	 */
+	static String expandParameterList(String name, int size) {
+		StringBuilder list = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				list.append(", ");
+			}
+			list.append(':').append(name).append(i).append('_');
+		}
+		return list.toString();
+	}
+
+	/**
+	 * HQL をその場でコンパイルする
+	 * 
+	 * コンパイルできなかった HQL はエラーログに出力します。
+	 * 
+	 * @param sf
+	 * @param hqls
+	 */
+	static void compileAll(SessionFactory sf, Set<String> hqls) {
+		for (String hql : hqls) {
+			try {
+				RakuRakuQuery.compile((SessionFactoryImplementor) sf, hql);
+			}
+			catch (HibernateException e) {
+				LOG.error("invalid query: " + hql, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * クエリ統計
+ * 
+ * RakuRakuFinder.list() / uniq(), RakuRakuUpdater / RakuRakuDeleter.execute(),
+ * Tx.commit() のレイテンシのヒストグラムと行数を、パラメータ値を含まないHQLごとに記録します。
+ * Tx.run() のリトライ回数も例外クラスごとに記録します。
+ * 閾値を超えたクエリはパラメータ名付きで info.kinumi.rakuraku.hibernate.slowquery ロガーに出力します。
+ * 
+ * 最初に使われたときに JMX (info.kinumi.rakuraku.hibernate:type=QueryStats) に登録されます。
+ * 記録の経路は、初めてのクエリ以外ではアロケーションしません。
+ * 
+ * @author kunimi.ikeda
+ */
+public class QueryStats implements QueryStatsMBean {
+
+	/**
+	 * JMX の ObjectName
+	 */
+	public static final String OBJECT_NAME = "info.kinumi.rakuraku.hibernate:type=QueryStats";
+
+	/**
+	 * 記録するクエリの種類の上限 (超えた分は OTHER にまとめる)
+	 */
+	static final int MAX_QUERIES = 1000;
+
+	/**
+	 * 上限を超えたクエリ
+	 */
+	static final String OTHER = "(other)";
+
+	/**
+	 * ヒストグラムのバケット数 (バケット i は 2^i マイクロ秒未満)
+	 */
+	static final int BUCKETS = 40;
+
+	/**
+	 * スロークエリのロガー
+	 */
+	static final Logger SLOW_QUERY_LOG = LoggerFactory.getLogger("info.kinumi.rakuraku.hibernate.slowquery");
+
+	/**
+	 * ロガー
+	 */
+	static final Logger LOG = LoggerFactory.getLogger(QueryStats.class);
+
+	/**
+	 * インスタンス
+	 */
+	static final QueryStats INSTANCE = new QueryStats();
+
+	static {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(INSTANCE, name);
+			}
+		}
+		catch (JMException e) {
+			LOG.warn("could not register " + OBJECT_NAME, e);
+		}
+	}
+
+	/**
+	 * クエリごとの統計
+	 */
+	ConcurrentMap<String, Entry> _entries = new ConcurrentHashMap<>();
+
+	/**
+	 * 例外クラスごとのリトライ回数
+	 */
+	ConcurrentMap<String, AtomicLong> _retries = new ConcurrentHashMap<>();
+
+	/**
+	 * リトライを諦めた回数
+	 */
+	final AtomicLong _retryExhausted = new AtomicLong();
+
+	/**
+	 * 記録するか
+	 */
+	volatile boolean _enabled = true;
+
+	/**
+	 * スロークエリの閾値 (ナノ秒)
+	 */
+	volatile long _slowQueryThresholdNanos = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * インスタンスを取得する
+	 * 
+	 * @return
+	 */
+	public static QueryStats getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 1回の実行を記録する
+	 * 
+	 * @param query
+	 *            パラメータ値を含まないHQL
+	 * @param nanos
+	 *            レイテンシ
+	 * @param rows
+	 *            行数
+	 * @param paramNames
+	 *            パラメータ名 (スロークエリのログ用)
+	 */
+	public void record(String query, long nanos, long rows, Collection<String> paramNames) {
+		if (!_enabled) {
+			return;
+		}
+		entry(query).record(nanos, rows);
+		if (nanos >= _slowQueryThresholdNanos) {
+			SLOW_QUERY_LOG.warn("{} ms, {} rows: {} params={}", new Object[] { TimeUnit.NANOSECONDS.toMillis(nanos), rows, query, paramNames });
+		}
+	}
+
+	/**
+	 * Tx.run() のリトライを記録する
+	 * 
+	 * @param e
+	 *            リトライの原因
+	 */
+	void recordRetry(Throwable e) {
+		String name = e.getClass().getName();
+		AtomicLong count = _retries.get(name);
+		if (count == null) {
+			count = new AtomicLong();
+			AtomicLong existing = _retries.putIfAbsent(name, count);
+			if (existing != null) {
+				count = existing;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Tx.run() がリトライを諦めたことを記録する
+	 * 
+	 * @param e
+	 *            最後の例外
+	 */
+	void recordRetryExhausted(Throwable e) {
+		_retryExhausted.incrementAndGet();
+		LOG.warn("gave up retrying transaction: {}", e.toString());
+	}
+
+	/**
+	 * クエリの統計を取得する (なければ作る)
+	 * 
+	 * @param query
+	 * @return
+	 */
+	Entry entry(String query) {
+		Entry entry = _entries.get(query);
+		if (entry == null) {
+			if (_entries.size() >= MAX_QUERIES) {
+				query = OTHER;
+				entry = _entries.get(query);
+			}
+			if (entry == null) {
+				entry = new Entry();
+				Entry existing = _entries.putIfAbsent(query, entry);
+				if (existing != null) {
+					entry = existing;
+				}
+			}
+		}
+		return entry;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return _enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		_enabled = enabled;
+	}
+
+	@Override
+	public long getSlowQueryThresholdMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(_slowQueryThresholdNanos);
+	}
+
+	@Override
+	public void setSlowQueryThresholdMillis(long millis) {
+		_slowQueryThresholdNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	@Override
+	public String[] getQueries() {
+		Set<String> queries = new TreeSet<>(_entries.keySet());
+		return queries.toArray(new String[queries.size()]);
+	}
+
+	@Override
+	public long getCount(String query) {
+		Entry entry = _entries.get(query);
+		return entry != null ? entry._count.get() : 0;
+	}
+
+	@Override
+	public long getRows(String query) {
+		Entry entry = _entries.get(query);
+		return entry != null ? entry._rows.get() : 0;
+	}
+
+	@Override
+	public double getMeanMillis(String query) {
+		Entry entry = _entries.get(query);
+		if (entry == null || entry._count.get() == 0) {
+			return 0;
+		}
+		return toMillis(entry._totalNanos.get()) / entry._count.get();
+	}
+
+	@Override
+	public double getMaxMillis(String query) {
+		Entry entry = _entries.get(query);
+		return entry != null ? toMillis(entry._maxNanos.get()) : 0;
+	}
+
+	@Override
+	public double getPercentileMillis(String query, double percentile) {
+		Entry entry = _entries.get(query);
+		if (entry == null) {
+			return 0;
+		}
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += entry._buckets.get(i);
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += entry._buckets.get(i);
+			if (seen >= rank && seen > 0) {
+				return Math.min(toMillis(TimeUnit.MICROSECONDS.toNanos(1L << i)), toMillis(entry._maxNanos.get()));
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public long getRetryCount() {
+		long count = 0;
+		for (AtomicLong c : _retries.values()) {
+			count += c.get();
+		}
+		return count;
+	}
+
+	@Override
+	public long getRetryExhaustedCount() {
+		return _retryExhausted.get();
+	}
+
+	@Override
+	public Map<String, Long> getRetryCountByException() {
+		Map<String, Long> counts = new TreeMap<>();
+		for (Map.Entry<String, AtomicLong> e : _retries.entrySet()) {
+			counts.put(e.getKey(), e.getValue().get());
+		}
+		return counts;
+	}
+
+	@Override
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		for (String query : getQueries()) {
+			sb.append(String.format("count=%d rows=%d mean=%.3fms p99=%.3fms max=%.3fms %s%n",
+				getCount(query), getRows(query), getMeanMillis(query),
+				getPercentileMillis(query, 99), getMaxMillis(query), query));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void reset() {
+		_entries.clear();
+		_retries.clear();
+		_retryExhausted.set(0);
+	}
+
+	/**
+	 * ナノ秒をミリ秒に変換する
+	 * 
+	 * @param nanos
+	 * @return
+	 */
+	static double toMillis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	/**
+	 * 1クエリの統計
+	 */
+	static class Entry {
+
+		/**
+		 * 実行回数
+		 */
+		final AtomicLong _count = new AtomicLong();
+
+		/**
+		 * 行数の合計
+		 */
+		final AtomicLong _rows = new AtomicLong();
+
+		/**
+		 * レイテンシの合計
+		 */
+		final AtomicLong _totalNanos = new AtomicLong();
+
+		/**
+		 * レイテンシの最大値
+		 */
+		final AtomicLong _maxNanos = new AtomicLong();
+
+		/**
+		 * レイテンシのヒストグラム
+		 */
+		final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+
+		/**
+		 * 1回の実行を記録する
+		 * 
+		 * @param nanos
+		 * @param rows
+		 */
+		void record(long nanos, long rows) {
+			_count.incrementAndGet();
+			_rows.addAndGet(rows);
+			_totalNanos.addAndGet(nanos);
+			long max = _maxNanos.get();
+			while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) {
+				max = _maxNanos.get();
+			}
+			long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+			int bucket = 64 - Long.numberOfLeadingZeros(micros);
+			_buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		}
+	}
+}
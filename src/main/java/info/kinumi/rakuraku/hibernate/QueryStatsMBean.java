@@ -0,0 +1,123 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.util.Map;
+
+/**
+ * クエリ統計の MBean
+ * 
+ * ObjectName: info.kinumi.rakuraku.hibernate:type=QueryStats
+ * 
+ * @author kunimi.ikeda
+ */
+public interface QueryStatsMBean {
+
+	/**
+	 * 記録するか
+	 * 
+	 * @return
+	 */
+	boolean isEnabled();
+
+	/**
+	 * 記録するかを設定する
+	 * 
+	 * @param enabled
+	 */
+	void setEnabled(boolean enabled);
+
+	/**
+	 * スロークエリとしてログに出力する閾値 (ミリ秒)
+	 * 
+	 * @return
+	 */
+	long getSlowQueryThresholdMillis();
+
+	/**
+	 * スロークエリとしてログに出力する閾値 (ミリ秒) を設定する
+	 * 
+	 * @param millis
+	 */
+	void setSlowQueryThresholdMillis(long millis);
+
+	/**
+	 * 記録されたクエリ (パラメータ値を含まないHQL) の一覧
+	 * 
+	 * @return
+	 */
+	String[] getQueries();
+
+	/**
+	 * 実行回数
+	 * 
+	 * @param query
+	 * @return
+	 */
+	long getCount(String query);
+
+	/**
+	 * 行数の合計
+	 * 
+	 * @param query
+	 * @return
+	 */
+	long getRows(String query);
+
+	/**
+	 * 平均レイテンシ (ミリ秒)
+	 * 
+	 * @param query
+	 * @return
+	 */
+	double getMeanMillis(String query);
+
+	/**
+	 * 最大レイテンシ (ミリ秒)
+	 * 
+	 * @param query
+	 * @return
+	 */
+	double getMaxMillis(String query);
+
+	/**
+	 * レイテンシのパーセンタイル (ミリ秒, ヒストグラムのバケット上限による近似値)
+	 * 
+	 * @param query
+	 * @param percentile
+	 *            0 - 100
+	 * @return
+	 */
+	double getPercentileMillis(String query, double percentile);
+
+	/**
+	 * Tx.run() のリトライ回数
+	 * 
+	 * @return
+	 */
+	long getRetryCount();
+
+	/**
+	 * Tx.run() がリトライを諦めた回数
+	 * 
+	 * @return
+	 */
+	long getRetryExhaustedCount();
+
+	/**
+	 * 例外クラスごとのリトライ回数
+	 * 
+	 * @return
+	 */
+	Map<String, Long> getRetryCountByException();
+
+	/**
+	 * 全クエリの要約
+	 * 
+	 * @return
+	 */
+	String getSummary();
+
+	/**
+	 * 統計をリセットする
+	 */
+	void reset();
+}
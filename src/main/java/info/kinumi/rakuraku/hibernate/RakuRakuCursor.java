@@ -0,0 +1,126 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+/**
+ * RakuRaku cursor
+ * 
+ * 前方スクロールのみの ScrollableResults を Iterator として扱います。
+ * clearEvery 行ごとにセッションをクリアするので、件数が多くてもメモリ使用量は一定です。
+ * 読み取り専用でないセッションはクリアの前に flush するので、処理中にエンティティを変更できます。
+ * 
+ * <code>
+ * try (RakuRakuCursor<A> cursor = tx.from(A.class).fetchSize(500).cursor()) {
+ *     while (cursor.hasNext()) {
+ *         A a = cursor.next();
+ *         ...
+ *     }
+ * }
+ * </code>
+ * 
+ * @param <T>
+ *            対象エンティティクラス
+ * @author kunimi.ikeda
+ */
+public class RakuRakuCursor<T> implements Iterator<T>, AutoCloseable {
+
+	/**
+	 * スクロール結果
+	 */
+	ScrollableResults _results;
+
+	/**
+	 * Hibernateセッション
+	 */
+	Session _session;
+
+	/**
+	 * セッションをクリアする間隔 (0以下ならクリアしない)
+	 */
+	int _clearEvery;
+
+	/**
+	 * 読み込んだ行数
+	 */
+	long _count = 0;
+
+	/**
+	 * 先読みした行があるか
+	 */
+	Boolean _hasNext = null;
+
+	/**
+	 * クローズ済みか
+	 */
+	boolean _closed = false;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param results
+	 * @param session
+	 * @param clearEvery
+	 */
+	public RakuRakuCursor(ScrollableResults results, Session session, int clearEvery) {
+		_results = results;
+		_session = session;
+		_clearEvery = clearEvery;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (_hasNext == null) {
+			if (_closed) {
+				return false;
+			}
+			if (_session != null && _clearEvery > 0 && _count > 0 && _count % _clearEvery == 0) {
+				if (!_session.isDefaultReadOnly()) {
+					_session.flush();
+				}
+				_session.clear();
+			}
+			_hasNext = _results.next();
+			if (!_hasNext) {
+				close();
+			}
+		}
+		return _hasNext;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		_hasNext = null;
+		_count++;
+		return (T) _results.get(0);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * 読み込んだ行数を取得する
+	 * 
+	 * @return
+	 */
+	public long getCount() {
+		return _count;
+	}
+
+	@Override
+	public void close() {
+		if (!_closed) {
+			_closed = true;
+			_results.close();
+		}
+	}
+}
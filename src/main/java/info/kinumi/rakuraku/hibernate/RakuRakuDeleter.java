@@ -1,10 +1,14 @@
 package info.kinumi.rakuraku.hibernate;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.hibernate.Query;
 import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.SessionImplementor;
 
 import com.google.common.base.Joiner;
 
@@ -33,6 +37,11 @@ public class RakuRakuDeleter<T> {
 	 */
 	Session _session;
 
+	/**
+	 * Hibernateステートレスセッション
+	 */
+	StatelessSession _statelessSession;
+
 	/**
 	 * クラス
 	 */
@@ -48,6 +57,16 @@ public class RakuRakuDeleter<T> {
 	 */
 	Map<String, Object> _params = new HashMap<>();
 
+	/**
+	 * addBatch() したパラメータセット
+	 */
+	List<Map<String, Object>> _batch = null;
+
+	/**
+	 * 実行したエンティティクラスを記録するトランザクションのセット
+	 */
+	Set<Class<?>> _touched = null;
+
 	/**
 	 * コンストラクタ
 	 * 
@@ -58,6 +77,17 @@ public class RakuRakuDeleter<T> {
 		_session = session;
 	}
 
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param klass
+	 * @param statelessSession
+	 */
+	public RakuRakuDeleter(Class<T> klass, StatelessSession statelessSession) {
+		_klass = klass;
+		_statelessSession = statelessSession;
+	}
+
 	/**
 	 * where
 	 * 
@@ -84,6 +114,60 @@ public class RakuRakuDeleter<T> {
 		return this;
 	}
 
+	/**
+	 * 現在のパラメータをパラメータセットとしてバッチに追加する
+	 * 
+	 * <code>
+	 * RakuRakuDeleter<A> deleter = tx.delete(A.class).where("a = :a");
+	 * for (A a : list) {
+	 *     deleter.param("a", a.a).addBatch();
+	 * }
+	 * int[] counts = deleter.executeBatch();
+	 * </code>
+	 * 
+	 * @return
+	 */
+	public RakuRakuDeleter<T> addBatch() {
+		_batch = HQLBatch.add(_batch, _params);
+		return this;
+	}
+
+	/**
+	 * バッチを実行する
+	 * 
+	 * HQLは1回だけ翻訳し、パラメータセットを hibernate.jdbc.batch_size 件ずつJDBCバッチで送ります。
+	 * コレクションのパラメータは使えません。
+	 * 
+	 * @return パラメータセットごとの更新件数
+	 */
+	public int[] executeBatch() {
+		if (_batch == null) {
+			return new int[0];
+		}
+		String hql = getHQL();
+		SessionImplementor session;
+		if (_statelessSession != null) {
+			StatelessTx.executeBatch(_statelessSession);
+			session = (SessionImplementor) _statelessSession;
+		}
+		else {
+			_session.flush();
+			session = (SessionImplementor) _session;
+		}
+		long start = System.nanoTime();
+		int[] counts = HQLBatch.execute(session, hql, _batch);
+		long rows = 0;
+		for (int count : counts) {
+			rows += Math.max(count, 0);
+		}
+		QueryStats.getInstance().record(hql, System.nanoTime() - start, rows, _params.keySet());
+		_batch = null;
+		if (_touched != null) {
+			_touched.add(_klass);
+		}
+		return counts;
+	}
+
 	/**
 	 * HQLを取得する
 	 * 
@@ -103,8 +187,29 @@ public class RakuRakuDeleter<T> {
 	 * @return
 	 */
 	public int execute() {
-		Query query = _session.createQuery(getHQL());
+		String hql = getHQL();
+		Query query = createQuery(hql);
 		query.setProperties(_params);
-		return query.executeUpdate();
+		long start = System.nanoTime();
+		int count = query.executeUpdate();
+		QueryStats.getInstance().record(hql, System.nanoTime() - start, count, _params.keySet());
+		if (_touched != null) {
+			_touched.add(_klass);
+		}
+		return count;
+	}
+
+	/**
+	 * クエリを作成する
+	 * 
+	 * @param hql
+	 * @return
+	 */
+	Query createQuery(String hql) {
+		if (_statelessSession != null) {
+			StatelessTx.executeBatch(_statelessSession);
+			return _statelessSession.createQuery(hql);
+		}
+		return _session.createQuery(hql);
 	}
 }
@@ -1,13 +1,47 @@
 package info.kinumi.rakuraku.hibernate;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
+import org.hibernate.EntityMode;
+import org.hibernate.HibernateException;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.transform.DistinctRootEntityResultTransformer;
+import org.hibernate.type.AssociationType;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
+import com.google.common.primitives.Primitives;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * RakuRaku finder
@@ -38,6 +72,16 @@ public class RakuRakuFinder<T> {
 	 */
 	Session _session;
 
+	/**
+	 * Hibernateステートレスセッション
+	 */
+	StatelessSession _statelessSession;
+
+	/**
+	 * セッションのないプロトタイプの HQL を組み立てるセッションファクトリ
+	 */
+	SessionFactory _factory = null;
+
 	/**
 	 * クラス
 	 */
@@ -53,6 +97,31 @@ public class RakuRakuFinder<T> {
 	 */
 	String _orderBy = "";
 	
+	/**
+	 * order by の各カラム
+	 */
+	String[] _orderByColumns = {};
+
+	/**
+	 * fetch するパス => エイリアス
+	 */
+	Map<String, String> _fetches = new LinkedHashMap<>();
+
+	/**
+	 * コレクションを fetch するか (未判定なら null)
+	 */
+	Boolean _collectionFetch = null;
+
+	/**
+	 * キーセットページングの条件
+	 */
+	Object[] _seekKey = null;
+
+	/**
+	 * 組み立て済みのHQL
+	 */
+	String _hql = null;
+
 	/**
 	 * limit
 	 */
@@ -63,11 +132,81 @@ public class RakuRakuFinder<T> {
 	 */
 	Integer _offset = null;
 
+	/**
+	 * fetch size
+	 */
+	Integer _fetchSize = null;
+
+	/**
+	 * cursor でセッションをクリアする間隔
+	 */
+	int _clearEvery = DEFAULT_CLEAR_EVERY;
+
+	/**
+	 * Hibernate のクエリキャッシュを使うか
+	 */
+	boolean _cacheable = false;
+
+	/**
+	 * Hibernate のクエリキャッシュのリージョン
+	 */
+	String _cacheRegion = null;
+
+	/**
+	 * プロセス内の結果キャッシュ
+	 */
+	ResultCache _resultCache = null;
+
+	/**
+	 * トランザクション内で変更したエンティティクラス (変更していれば結果キャッシュを使わない)
+	 */
+	Set<Class<?>> _touched = null;
+
+	/**
+	 * in (:list) のコレクションを分割する件数
+	 */
+	int _chunkSize = DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * 分割したクエリを並列に実行するエクゼキュータ
+	 */
+	TxExecutor _chunkExecutor = null;
+
 	/**
 	 * パラメータマップ
 	 */
 	Map<String, Object> _params = new HashMap<>();
 
+	/**
+	 * in (:list) の長さを揃えたパラメータマップ (未作成なら null)
+	 */
+	Map<String, Object> _paddedParams = null;
+
+	/**
+	 * ロガー
+	 */
+	static final Logger LOG = LoggerFactory.getLogger(RakuRakuFinder.class);
+
+	/**
+	 * fetch する場合のルートエンティティのエイリアス
+	 */
+	static final String ROOT_ALIAS = "root";
+
+	/**
+	 * cursor の既定の fetch size
+	 */
+	static final int DEFAULT_CURSOR_FETCH_SIZE = 1000;
+
+	/**
+	 * cursor でセッションをクリアする既定の間隔
+	 */
+	static final int DEFAULT_CLEAR_EVERY = 1000;
+
+	/**
+	 * in (:list) のコレクションを分割する既定の件数
+	 */
+	static final int DEFAULT_CHUNK_SIZE = 512;
+
 	/**
 	 * コンストラクタ
 	 * 
@@ -78,6 +217,17 @@ public class RakuRakuFinder<T> {
 		_session = session;
 	}
 
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param klass
+	 * @param statelessSession
+	 */
+	public RakuRakuFinder(Class<T> klass, StatelessSession statelessSession) {
+		_klass = klass;
+		_statelessSession = statelessSession;
+	}
+
 	/**
 	 * where
 	 * 
@@ -89,6 +239,7 @@ public class RakuRakuFinder<T> {
 		sb.append(Joiner.on(") and (").join(where));
 		sb.append(") ");
 		_where = sb.toString();
+		_hql = null;
 		return this;
 	}
 
@@ -103,8 +254,135 @@ public class RakuRakuFinder<T> {
 		sb.append(Joiner.on(", ").join(orderBy));
 		sb.append(" ");
 		_orderBy = sb.toString();
+		_orderByColumns = orderBy.clone();
+		_hql = null;
 		return this;
 	}
+
+	/**
+	 * 関連を left join fetch で同時に取得する
+	 * 
+	 * 一覧で関連にアクセスするたびに1件ずつクエリが発行される (N+1) のを防ぎます。
+	 * "a.b" のようにたどる場合、"a" も fetch します。
+	 * エイリアスはパスの . を _ にして末尾に _ を付けたものです ("a.b" => a_b_)。
+	 * ルートエンティティのエイリアスは {@value #ROOT_ALIAS} です。
+	 * join した HQL ではエイリアスのないプロパティがどのエンティティのものか決まらないので、
+	 * where, orderBy ではルートエンティティのプロパティも {@value #ROOT_ALIAS} で修飾して書いてください。
+	 * 
+	 * コレクションを fetch した場合、list() は重複したルートエンティティを除きます。
+	 * limit, offset と組み合わせると Hibernate がメモリ上でページングするので警告を出します。
+	 * uniq() は行数を制限せずに読み、最初のルートエンティティを返します。
+	 * cursor(), forEach(), exportTo(), partitionBy() はコレクションを fetch できません。
+	 * 
+	 * <code>
+	 * tx.from(A.class)
+	 *     .fetch("b.c")
+	 *     .where("b_.d = :d")
+	 *     .orderBy("root.id")
+	 *     .list();
+	 * // => query by HQL: [from A root left join fetch root.b as b_ left join fetch b_.c as b_c_ where (b_.d = :d) order by root.id]
+	 * </code>
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public RakuRakuFinder<T> fetch(String path) {
+		return fetch(path, path.replace('.', '_') + "_");
+	}
+
+	/**
+	 * 関連をエイリアスを指定して left join fetch で同時に取得する
+	 * 
+	 * @param path
+	 * @param alias
+	 * @return
+	 * @see #fetch(String)
+	 */
+	public RakuRakuFinder<T> fetch(String path, String alias) {
+		int dot = path.lastIndexOf('.');
+		if (dot > 0 && !_fetches.containsKey(path.substring(0, dot))) {
+			fetch(path.substring(0, dot));
+		}
+		_fetches.put(path, alias);
+		_collectionFetch = null;
+		_hql = null;
+		return this;
+	}
+
+	/**
+	 * キーセットページング
+	 * 
+	 * orderBy() のカラム順に前ページ最後の行の値を渡すと、その次の行から取得します。
+	 * offset() と違い、読み飛ばす行がないのでどのページも同じコストです。
+	 * カラムの値に null がある場合は使えません。
+	 * 条件は実行時に orderBy() のカラムから組み立てるので、seek() の後に orderBy() しても構いません。
+	 * 
+	 * <code>
+	 * tx.from(A.class)
+	 *     .orderBy("b", "id desc")
+	 *     .seek("x", 100)
+	 *     .limit(10)
+	 *     .list();
+	 * // => query by HQL: [from A where (b > 'x') or (b = 'x' and id < 100) order by b, id desc]
+	 * </code>
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public RakuRakuFinder<T> seek(Object... key) {
+		for (int i = 0; i < key.length; i++) {
+			_params.put("_seek" + i, key[i]);
+		}
+		_paddedParams = null;
+		_seekKey = key.clone();
+		_hql = null;
+		return this;
+	}
+
+	/**
+	 * キーセットページングの条件を組み立てる
+	 * 
+	 * @return
+	 * @throws IllegalStateException
+	 *             seek() の値の数が orderBy() のカラム数と違う場合
+	 */
+	String getSeekClause() {
+		if (_seekKey.length != _orderByColumns.length) {
+			throw new IllegalStateException("seek() needs " + _orderByColumns.length + " values for" + _orderBy);
+		}
+		StringBuilder sb = new StringBuilder(100);
+		for (int i = 0; i < _seekKey.length; i++) {
+			if (i > 0) {
+				sb.append(" or ");
+			}
+			sb.append("(");
+			for (int j = 0; j < i; j++) {
+				sb.append(orderColumn(j));
+				sb.append(" = :_seek");
+				sb.append(j);
+				sb.append(" and ");
+			}
+			sb.append(orderColumn(i));
+			sb.append(orderDesc(i) ? " < :_seek" : " > :_seek");
+			sb.append(i);
+			sb.append(")");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * キーセットページング
+	 * 
+	 * 前ページ最後の行を渡すと、その次の行から取得します。
+	 * orderBy() のカラムはエンティティのプロパティ名である必要があります。
+	 * 
+	 * @param lastRow
+	 * @return
+	 * @see #seek(Object...)
+	 */
+	public RakuRakuFinder<T> after(T lastRow) {
+		return seek(keyOf(lastRow));
+	}
 	
 	/**
 	 * limit
@@ -128,6 +406,116 @@ public class RakuRakuFinder<T> {
 		return this;
 	}
 
+	/**
+	 * JDBC の fetch size
+	 * 
+	 * @param fetchSize
+	 * @return
+	 */
+	public RakuRakuFinder<T> fetchSize(int fetchSize) {
+		_fetchSize = fetchSize;
+		return this;
+	}
+
+	/**
+	 * cursor() / forEach() でセッションをクリアする間隔 (0以下ならクリアしない)
+	 * 
+	 * @param clearEvery
+	 * @return
+	 */
+	public RakuRakuFinder<T> clearEvery(int clearEvery) {
+		_clearEvery = clearEvery;
+		return this;
+	}
+
+	/**
+	 * Hibernate のクエリキャッシュを使う
+	 * 
+	 * hibernate.cache.use_query_cache が有効な場合のみキャッシュされます。
+	 * 
+	 * @return
+	 */
+	public RakuRakuFinder<T> cacheable() {
+		_cacheable = true;
+		return this;
+	}
+
+	/**
+	 * Hibernate のクエリキャッシュをリージョンを指定して使う
+	 * 
+	 * @param region
+	 * @return
+	 */
+	public RakuRakuFinder<T> cacheable(String region) {
+		_cacheable = true;
+		_cacheRegion = region;
+		return this;
+	}
+
+	/**
+	 * list() / uniq() の結果をプロセス内のキャッシュに保持する
+	 * 
+	 * キャッシュにはエンティティの ID を保持し、ヒットしたら ID からエンティティを解決します。
+	 * セッションと二次キャッシュにあるエンティティは SQL なしで返し、残りだけを主キーの in 検索1回で読み込みます。
+	 * 同じトランザクションでこのクラスを変更 (flush) した場合はキャッシュを使わずに実行します。
+	 * 未 flush の変更は見えません。
+	 * 
+	 * @param cache
+	 * @return
+	 * @see ResultCache
+	 */
+	public RakuRakuFinder<T> cacheIn(ResultCache cache) {
+		_resultCache = cache;
+		return this;
+	}
+
+	/**
+	 * list() で in (:list) のコレクションを分割する件数
+	 * 
+	 * コレクションのパラメータがこの件数を超えると、重複を除いて分割し、
+	 * 分割ごとに実行した結果をマージして orderBy, limit, offset を適用し直します。
+	 * 各コレクションは長さを2のべき乗に揃えてから渡します。
+	 * 
+	 * マージした結果を並べ替えられるのは、orderBy がルートエンティティの比較可能なプロパティと asc / desc だけの場合です。
+	 * 関連のパス, 関数, nulls first / last などを含む場合は分割せずに1回で実行します。
+	 * ソートキーの null は DB の既定の順序 (Dialect ごとに最小または最大) に合わせて並べます。
+	 * 
+	 * <code>
+	 * tx.from(A.class)
+	 *     .where("id in (:ids)")
+	 *     .orderBy("b")
+	 *     .param("ids", ids) // 1200 ids
+	 *     .chunkSize(512)
+	 *     .list();
+	 * // => query by HQL: [from A where id in (:ids) order by b] x 3 (512, 512, 256 ids)
+	 * </code>
+	 * 
+	 * @param chunkSize
+	 * @return
+	 */
+	public RakuRakuFinder<T> chunkSize(int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		}
+		_chunkSize = chunkSize;
+		_paddedParams = null;
+		return this;
+	}
+
+	/**
+	 * 分割したクエリを読み取り専用トランザクションで並列に実行する
+	 * 
+	 * 別セッションで取得するので、エンティティは detach された状態で返ります。
+	 * 
+	 * @param executor
+	 * @return
+	 * @see #chunkSize(int)
+	 */
+	public RakuRakuFinder<T> parallelChunks(TxExecutor executor) {
+		_chunkExecutor = executor;
+		return this;
+	}
+
 	/**
 	 * パラメータのセット
 	 * 
@@ -137,6 +525,7 @@ public class RakuRakuFinder<T> {
 	 */
 	public RakuRakuFinder<T> param(String param, Object value) {
 		_params.put(param, value);
+		_paddedParams = null;
 		return this;
 	}
 
@@ -146,12 +535,83 @@ public class RakuRakuFinder<T> {
 	 * @return
 	 */
 	public String getHQL() {
-		StringBuilder hql = new StringBuilder(100);
+		if (_hql == null) {
+			StringBuilder hql = new StringBuilder(100);
+			appendFromWhere(hql, true);
+			appendOrderBy(hql);
+			_hql = hql.toString();
+		}
+		return _hql;
+	}
+
+	/**
+	 * from句とwhere句を追加する
+	 * 
+	 * fetch() した関連は fetch なしの left join にします。
+	 * 
+	 * @param hql
+	 */
+	void appendFromWhere(StringBuilder hql) {
+		appendFromWhere(hql, false);
+	}
+
+	/**
+	 * from句とwhere句を追加する
+	 * 
+	 * @param hql
+	 * @param fetch
+	 *            left join fetch にするか
+	 */
+	void appendFromWhere(StringBuilder hql, boolean fetch) {
 		hql.append("from ");
 		hql.append(_klass.getCanonicalName());
+		if (!_fetches.isEmpty()) {
+			hql.append(" ");
+			hql.append(ROOT_ALIAS);
+			for (Map.Entry<String, String> e : _fetches.entrySet()) {
+				String path = e.getKey();
+				int dot = path.lastIndexOf('.');
+				hql.append(fetch ? " left join fetch " : " left join ");
+				hql.append(dot > 0 ? _fetches.get(path.substring(0, dot)) : ROOT_ALIAS);
+				hql.append(".");
+				hql.append(path.substring(dot + 1));
+				hql.append(" as ");
+				hql.append(e.getValue());
+			}
+		}
 		hql.append(_where);
-		hql.append(_orderBy);
-		return hql.toString();
+		if (_seekKey != null) {
+			hql.append(_where.isEmpty() ? " where (" : " and (");
+			hql.append(getSeekClause());
+			hql.append(") ");
+		}
+	}
+
+	/**
+	 * 組み立て済みの句をコピーする
+	 * 
+	 * @param prototype
+	 * @return
+	 */
+	RakuRakuFinder<T> copyClauses(RakuRakuFinder<T> prototype) {
+		_where = prototype._where;
+		_orderBy = prototype._orderBy;
+		_orderByColumns = prototype._orderByColumns;
+		_fetches = new LinkedHashMap<>(prototype._fetches);
+		_seekKey = prototype._seekKey;
+		_params.putAll(prototype._params);
+		_paddedParams = null;
+		_limit = prototype._limit;
+		_offset = prototype._offset;
+		_fetchSize = prototype._fetchSize;
+		_clearEvery = prototype._clearEvery;
+		_cacheable = prototype._cacheable;
+		_cacheRegion = prototype._cacheRegion;
+		_resultCache = prototype._resultCache;
+		_chunkSize = prototype._chunkSize;
+		_chunkExecutor = prototype._chunkExecutor;
+		_hql = prototype.getHQL();
+		return this;
 	}
 
 	/**
@@ -161,13 +621,176 @@ public class RakuRakuFinder<T> {
 	 */
 	@SuppressWarnings("unchecked")
 	public T uniq() {
-		Query query = _session.createQuery(getHQL());
-		query.setMaxResults(1);
+		ResultCache.Key key = null;
+		long generation = 0;
+		if (isResultCacheUsable()) {
+			key = new ResultCache.Key(_klass, getHQL(), _params, null, _offset, true);
+			generation = _resultCache.generation();
+			Object cached = _resultCache.get(key);
+			if (cached != null) {
+				if (cached == ResultCache.NULL) {
+					return null;
+				}
+				List<T> loaded = loadCached(Collections.singletonList(cached));
+				return loaded.isEmpty() ? null : loaded.get(0);
+			}
+		}
+		Query query = createQuery(getHQL());
+		if (!hasCollectionFetch()) {
+			query.setMaxResults(1);
+		}
 		if (_offset != null) {
 			query.setFirstResult(_offset);
 		}
+		applyFetch(query, _offset != null);
+		applyCacheable(query);
 		query.setProperties(_params);
-		return (T) query.uniqueResult();
+		long start = System.nanoTime();
+		List<T> rows = query.list();
+		T o = rows.isEmpty() ? null : rows.get(0);
+		QueryStats.getInstance().record(getHQL(), System.nanoTime() - start, o != null ? 1 : 0, _params.keySet());
+		if (key != null) {
+			_resultCache.put(key, o != null ? getIdentifier(o) : null, generation);
+		}
+		return o;
+	}
+
+	/**
+	 * カラムを指定して Object[] で取得する
+	 * 
+	 * @param columns
+	 * @return
+	 */
+	public RakuRakuProjection<Object[]> select(String... columns) {
+		return new RakuRakuProjection<Object[]>(getSelectHQL(Joiner.on(", ").join(columns)), columns.length == 1, _limit, _offset, _params, _session, _statelessSession);
+	}
+
+	/**
+	 * 1カラムを指定して値で取得する
+	 * 
+	 * カラムの型が type に代入できない場合は IllegalArgumentException を投げます。
+	 * 
+	 * @param type
+	 * @param column
+	 * @return
+	 */
+	public <R> RakuRakuProjection<R> select(Class<R> type, String column) {
+		String hql = getSelectHQL(column);
+		SessionFactoryImplementor factory = (SessionFactoryImplementor) getSessionFactory();
+		Type[] types = factory.getQueryPlanCache().getHQLQueryPlan(hql, false, Collections.EMPTY_MAP).getReturnMetadata().getReturnTypes();
+		if (types.length != 1) {
+			throw new IllegalArgumentException("select " + column + " returns " + types.length + " columns");
+		}
+		Class<?> returned = types[0].getReturnedClass();
+		if (!Primitives.wrap(type).isAssignableFrom(Primitives.wrap(returned))) {
+			throw new IllegalArgumentException("select " + column + " returns " + returned.getName() + ", not " + type.getName());
+		}
+		return new RakuRakuProjection<R>(hql, false, _limit, _offset, _params, _session, _statelessSession);
+	}
+
+	/**
+	 * カラムを指定して DTO のコンストラクタで取得する
+	 * 
+	 * @param dto
+	 * @param columns
+	 * @return
+	 */
+	public <R> RakuRakuProjection<R> selectNew(Class<R> dto, String... columns) {
+		StringBuilder select = new StringBuilder(100);
+		select.append("new ");
+		select.append(dto.getName());
+		select.append("(");
+		select.append(Joiner.on(", ").join(columns));
+		select.append(")");
+		return new RakuRakuProjection<R>(getSelectHQL(select.toString()), false, _limit, _offset, _params, _session, _statelessSession);
+	}
+
+	/**
+	 * select句付きのHQLを取得する
+	 * 
+	 * @param select
+	 * @return
+	 */
+	String getSelectHQL(String select) {
+		StringBuilder hql = new StringBuilder(100);
+		hql.append("select ");
+		hql.append(select);
+		hql.append(" ");
+		appendFromWhere(hql);
+		appendOrderBy(hql);
+		return hql.toString();
+	}
+
+	/**
+	 * order by句を追加する
+	 * 
+	 * @param hql
+	 */
+	void appendOrderBy(StringBuilder hql) {
+		hql.append(_orderBy);
+	}
+
+	/**
+	 * ルートエンティティのプロパティを HQL で参照する名前を取得する
+	 * 
+	 * fetch() した場合は {@value #ROOT_ALIAS} で修飾します。
+	 * 
+	 * @param property
+	 * @return
+	 */
+	String rootProperty(String property) {
+		return _fetches.isEmpty() ? property : ROOT_ALIAS + "." + property;
+	}
+
+	/**
+	 * 件数を取得する
+	 * 
+	 * orderBy, limit, offset は無視します。
+	 * 
+	 * @return
+	 */
+	public long count() {
+		Query query = createQuery(getCountHQL());
+		query.setProperties(getPaddedParams());
+		return ((Number) query.uniqueResult()).longValue();
+	}
+
+	/**
+	 * count() の HQL を取得する
+	 * 
+	 * @return
+	 */
+	String getCountHQL() {
+		StringBuilder hql = new StringBuilder(100);
+		hql.append(_fetches.isEmpty() ? "select count(*) " : "select count(distinct " + ROOT_ALIAS + ") ");
+		appendFromWhere(hql);
+		return hql.toString();
+	}
+
+	/**
+	 * 1件でも存在するか
+	 * 
+	 * エンティティはロードせず、定数を1件だけ取得します。
+	 * 
+	 * @return
+	 */
+	public boolean exists() {
+		Query query = createQuery(getExistsHQL());
+		query.setMaxResults(1);
+		query.setProperties(getPaddedParams());
+		return query.uniqueResult() != null;
+	}
+
+	/**
+	 * exists() の HQL を取得する
+	 * 
+	 * @return
+	 */
+	String getExistsHQL() {
+		StringBuilder hql = new StringBuilder(100);
+		hql.append("select 1 ");
+		appendFromWhere(hql);
+		return hql.toString();
 	}
 
 	/**
@@ -177,14 +800,624 @@ public class RakuRakuFinder<T> {
 	 */
 	@SuppressWarnings("unchecked")
 	public List<T> list() {
-		Query query = _session.createQuery(getHQL());
+		ResultCache.Key key = null;
+		long generation = 0;
+		if (isResultCacheUsable()) {
+			key = new ResultCache.Key(_klass, getHQL(), _params, _limit, _offset, false);
+			generation = _resultCache.generation();
+			Object cached = _resultCache.get(key);
+			if (cached != null) {
+				return loadCached((List<Object>) cached);
+			}
+		}
+		long start = System.nanoTime();
+		String chunked = InLists.findOversized(_params, _chunkSize);
+		List<T> list = chunked != null && isSortableInMemory() ? listChunked(chunked) : query(getPaddedParams(), _limit, _offset);
+		QueryStats.getInstance().record(getHQL(), System.nanoTime() - start, list.size(), _params.keySet());
+		if (key != null) {
+			List<Object> ids = new ArrayList<>(list.size());
+			for (T o : list) {
+				ids.add(getIdentifier(o));
+			}
+			_resultCache.put(key, Collections.unmodifiableList(ids), generation);
+		}
+		return list;
+	}
+
+	/**
+	 * 結果キャッシュを使えるか
+	 * 
+	 * トランザクション内でこのクラスを変更 (flush) した場合は使いません。
+	 * 
+	 * @return
+	 */
+	boolean isResultCacheUsable() {
+		if (_resultCache == null) {
+			return false;
+		}
+		if (_touched != null) {
+			for (Class<?> klass : _touched) {
+				if (ResultCache.isRelated(klass, _klass)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * キャッシュされた ID のエンティティを解決する
+	 * 
+	 * セッションにあるエンティティはそのまま使い、二次キャッシュを持つクラスは session.get() で解決します。
+	 * 残りと、fetch() した関連を読み込む必要がある場合は主キーの in 検索で読み込みます。
+	 * 見つからない ID は除きます。
+	 * 
+	 * @param ids
+	 * @return ids の順
+	 */
+	@SuppressWarnings("unchecked")
+	List<T> loadCached(List<Object> ids) {
+		if (ids.isEmpty()) {
+			return new ArrayList<>();
+		}
+		ClassMetadata metadata = Entities.getMetadata(getSessionFactory(), _klass);
+		Map<Object, T> loaded = new HashMap<>();
+		Set<Object> missing = new LinkedHashSet<>(ids);
+		if (_session != null && _fetches.isEmpty()) {
+			SessionImplementor session = getSessionImplementor();
+			EntityPersister persister = session.getFactory().getEntityPersister(metadata.getEntityName());
+			PersistenceContext context = session.getPersistenceContext();
+			for (Iterator<Object> i = missing.iterator(); i.hasNext();) {
+				Serializable id = (Serializable) i.next();
+				Object o = context.getEntity(new EntityKey(id, persister, EntityMode.POJO));
+				if (o == null && persister.hasCache()) {
+					o = _session.get(metadata.getEntityName(), id);
+				}
+				if (o != null) {
+					loaded.put(id, (T) o);
+					i.remove();
+				}
+			}
+		}
+		if (!missing.isEmpty()) {
+			RakuRakuFinder<T> finder = _statelessSession != null ? new RakuRakuFinder<>(_klass, _statelessSession) : new RakuRakuFinder<>(_klass, _session);
+			finder._fetches = new LinkedHashMap<>(_fetches);
+			for (T o : finder.where(rootProperty(metadata.getIdentifierPropertyName()) + " in (:_ids)").param("_ids", new ArrayList<>(missing)).list()) {
+				loaded.put(getIdentifier(o), o);
+			}
+		}
+		List<T> list = new ArrayList<>(ids.size());
+		for (Object id : ids) {
+			T o = loaded.get(id);
+			if (o != null) {
+				list.add(o);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * エンティティの ID を取得する
+	 * 
+	 * @param o
+	 * @return
+	 */
+	Object getIdentifier(Object o) {
+		return Entities.getIdentifier(getSessionImplementor(), o);
+	}
+
+	/**
+	 * クエリを実行する
+	 * 
+	 * @param params
+	 * @param limit
+	 * @param offset
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	List<T> query(Map<String, Object> params, Integer limit, Integer offset) {
+		Query query = createQuery(getHQL());
+		if (limit != null) {
+			query.setMaxResults(limit);
+		}
+		if (offset != null) {
+			query.setFirstResult(offset);
+		}
+		if (_fetchSize != null) {
+			query.setFetchSize(_fetchSize);
+		}
+		applyFetch(query, limit != null || offset != null);
+		applyCacheable(query);
+		query.setProperties(params);
+		return (List<T>) query.list();
+	}
+
+	/**
+	 * コレクションのパラメータを分割して実行し、結果をマージする
+	 * 
+	 * @param name
+	 *            分割するパラメータ名
+	 * @return
+	 */
+	List<T> listChunked(String name) {
+		List<List<Object>> chunks = InLists.split((Collection<?>) _params.get(name), _chunkSize);
+		int offset = _offset != null ? _offset : 0;
+		Integer limit = _limit != null ? Integer.valueOf(offset + _limit) : null;
+		List<Map<String, Object>> chunkParams = new ArrayList<>();
+		for (List<Object> chunk : chunks) {
+			Map<String, Object> params = new HashMap<>(_params);
+			params.put(name, chunk);
+			chunkParams.add(InLists.pad(params, _chunkSize));
+		}
+		List<T> merged = new ArrayList<>();
+		if (_chunkExecutor != null) {
+			for (List<T> rows : queryInParallel(chunkParams, limit)) {
+				merged.addAll(rows);
+			}
+		}
+		else {
+			for (Map<String, Object> params : chunkParams) {
+				merged.addAll(query(params, limit, null));
+			}
+		}
+		if (_orderByColumns.length > 0) {
+			String[] properties = new String[_orderByColumns.length];
+			boolean[] desc = new boolean[_orderByColumns.length];
+			for (int i = 0; i < properties.length; i++) {
+				properties[i] = orderProperty(i);
+				desc[i] = orderDesc(i);
+			}
+			Collections.sort(merged, InLists.orderBy(getSessionImplementor(), properties, desc));
+		}
+		int to = limit != null ? Math.min(limit, merged.size()) : merged.size();
+		if (offset >= to) {
+			return new ArrayList<>();
+		}
+		return offset > 0 || to < merged.size() ? new ArrayList<>(merged.subList(offset, to)) : merged;
+	}
+
+	/**
+	 * in (:list) の長さを揃えたパラメータマップを取得する
+	 * 
+	 * param() するまで使い回します。
+	 * 
+	 * @return
+	 */
+	Map<String, Object> getPaddedParams() {
+		if (_paddedParams == null) {
+			_paddedParams = InLists.pad(_params, _chunkSize);
+		}
+		return _paddedParams;
+	}
+
+	/**
+	 * 分割した結果をメモリ上で order by の順に並べ替えられるか
+	 * 
+	 * @return order by がルートエンティティの比較可能なプロパティと asc / desc だけの場合
+	 */
+	boolean isSortableInMemory() {
+		ClassMetadata metadata = Entities.getMetadata(getSessionFactory(), _klass);
+		List<String> propertyNames = Arrays.asList(metadata.getPropertyNames());
+		for (int i = 0; i < _orderByColumns.length; i++) {
+			String[] tokens = _orderByColumns[i].trim().split("\\s+");
+			if (tokens.length > 2 || tokens.length == 2 && !tokens[1].equalsIgnoreCase("asc") && !tokens[1].equalsIgnoreCase("desc")) {
+				return false;
+			}
+			String property = orderProperty(i);
+			Type type;
+			if (property.equals(metadata.getIdentifierPropertyName())) {
+				type = metadata.getIdentifierType();
+			}
+			else if (propertyNames.contains(property)) {
+				type = metadata.getPropertyType(property);
+			}
+			else {
+				return false;
+			}
+			if (type.isAssociationType() || !Comparable.class.isAssignableFrom(type.getReturnedClass())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 分割したクエリを並列に実行する
+	 * 
+	 * @param chunkParams
+	 * @param limit
+	 * @return
+	 */
+	List<List<T>> queryInParallel(List<Map<String, Object>> chunkParams, final Integer limit) {
+		List<ListenableFuture<List<T>>> futures = new ArrayList<>();
+		for (final Map<String, Object> params : chunkParams) {
+			futures.add(_chunkExecutor.read(new TxCallback<List<T>>() {
+				@Override
+				public List<T> call(Tx tx) {
+					RakuRakuFinder<T> finder = tx.from(_klass).copyClauses(RakuRakuFinder.this);
+					finder._fetchSize = _fetchSize;
+					return finder.query(params, limit, null);
+				}
+			}));
+		}
+		try {
+			return Futures.allAsList(futures).get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HibernateException(e);
+		}
+		catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	/**
+	 * コレクションを fetch する場合、重複したルートエンティティを除く
+	 * 
+	 * @param query
+	 * @param paged
+	 *            limit, offset を指定したか
+	 */
+	void applyFetch(Query query, boolean paged) {
+		if (!hasCollectionFetch()) {
+			return;
+		}
+		query.setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE);
+		if (paged) {
+			LOG.warn("collection fetch with limit/offset is paged in memory: {}", getHQL());
+		}
+	}
+
+	/**
+	 * コレクションを fetch していればエラーにする
+	 * 
+	 * カーソルはルートエンティティの重複を除けず、コレクションも途中で切れるためです。
+	 * 
+	 * @param operation
+	 * @throws IllegalStateException
+	 */
+	void rejectCollectionFetch(String operation) {
+		if (hasCollectionFetch()) {
+			throw new IllegalStateException(operation + " does not support collection fetch: " + getHQL());
+		}
+	}
+
+	/**
+	 * コレクションを fetch するか
+	 * 
+	 * @return
+	 */
+	boolean hasCollectionFetch() {
+		if (_collectionFetch == null) {
+			boolean collection = false;
+			if (!_fetches.isEmpty()) {
+				SessionFactoryImplementor factory = (SessionFactoryImplementor) getSessionFactory();
+				for (String path : _fetches.keySet()) {
+					ClassMetadata metadata = Entities.getMetadata(factory, _klass);
+					for (String property : path.split("\\.")) {
+						Type type = metadata.getPropertyType(property);
+						if (type.isCollectionType()) {
+							collection = true;
+							break;
+						}
+						if (!type.isAssociationType()) {
+							throw new IllegalArgumentException("not an association: " + path);
+						}
+						metadata = factory.getClassMetadata(((AssociationType) type).getAssociatedEntityName(factory));
+					}
+				}
+			}
+			_collectionFetch = collection;
+		}
+		return _collectionFetch;
+	}
+
+	/**
+	 * Hibernate のクエリキャッシュの設定をする
+	 * 
+	 * @param query
+	 */
+	void applyCacheable(Query query) {
+		if (_cacheable) {
+			query.setCacheable(true);
+			if (_cacheRegion != null) {
+				query.setCacheRegion(_cacheRegion);
+			}
+		}
+	}
+
+	/**
+	 * 前方スクロールのみのカーソルを取得する
+	 * 
+	 * clearEvery 行ごとにセッションをクリアするので、
+	 * 取得済みのエンティティは detach されます。
+	 * 読み取り専用でないセッションはクリアの前に flush します。
+	 * 
+	 * @return
+	 * @throws IllegalStateException
+	 *             コレクションを fetch した場合
+	 */
+	public RakuRakuCursor<T> cursor() {
+		rejectCollectionFetch("cursor()");
+		return cursor(_clearEvery);
+	}
+
+	/**
+	 * 前方スクロールのみのカーソルを取得する
+	 * 
+	 * @param clearEvery
+	 *            セッションをクリアする間隔 (0以下ならクリアしない)
+	 * @return
+	 */
+	RakuRakuCursor<T> cursor(int clearEvery) {
+		Query query = createQuery(getHQL());
 		if (_limit != null) {
 			query.setMaxResults(_limit);
 		}
 		if (_offset != null) {
 			query.setFirstResult(_offset);
 		}
+		query.setFetchSize(_fetchSize != null ? _fetchSize : DEFAULT_CURSOR_FETCH_SIZE);
 		query.setProperties(_params);
-		return (List<T>) query.list();
+		return new RakuRakuCursor<>(query.scroll(ScrollMode.FORWARD_ONLY), _session, clearEvery);
+	}
+
+	/**
+	 * カーソルで1行ずつ処理する
+	 * 
+	 * @param handler
+	 * @return 処理した行数
+	 * @throws IllegalStateException
+	 *             コレクションを fetch した場合
+	 */
+	public long forEach(RowHandler<? super T> handler) {
+		try (RakuRakuCursor<T> cursor = cursor()) {
+			while (cursor.hasNext()) {
+				handler.handle(cursor.next());
+			}
+			return cursor.getCount();
+		}
+	}
+
+	/**
+	 * ファイルに書き出す
+	 * 
+	 * @param path
+	 *            既存のファイルは上書きします
+	 * @param format
+	 * @return 行数と1秒あたりの行数
+	 * @throws IOException
+	 * @throws IllegalStateException
+	 *             コレクションを fetch した場合
+	 * @see #exportTo(WritableByteChannel, ExportFormat)
+	 */
+	public BulkResult exportTo(Path path, ExportFormat format) throws IOException {
+		rejectCollectionFetch("exportTo()");
+		try (ExportWriter writer = ExportWriter.open(path, format)) {
+			return export(writer);
+		}
+	}
+
+	/**
+	 * チャネルに書き出す
+	 * 
+	 * カーソルで1行ずつ読み、識別子と各プロパティを1行目のヘッダの順に書き出します。
+	 * 関連エンティティはその識別子を書き出し (プロキシは初期化しません)、コレクションは書き出しません。
+	 * null は CSV では引用符のない空、TSV では \N で、空文字列 (CSV では "") と区別します。
+	 * チャネルは閉じません。
+	 * 
+	 * cursor() と違いセッションはクリアせず、clearEvery 行ごとに書き出しで読み込んだエンティティだけを evict します。
+	 * 呼び出し前からセッションにあるエンティティと未 flush の変更はそのままです。
+	 * 
+	 * <code>
+	 * tx.from(A.class)
+	 *     .where("a = :a")
+	 *     .param("a", 1)
+	 *     .exportTo(Paths.get("a.csv"), ExportFormat.CSV);
+	 * </code>
+	 * 
+	 * @param channel
+	 * @param format
+	 * @return 行数と1秒あたりの行数
+	 * @throws IOException
+	 * @throws IllegalStateException
+	 *             コレクションを fetch した場合
+	 */
+	public BulkResult exportTo(WritableByteChannel channel, ExportFormat format) throws IOException {
+		rejectCollectionFetch("exportTo()");
+		try (ExportWriter writer = new ExportWriter(channel, false, format)) {
+			return export(writer);
+		}
+	}
+
+	/**
+	 * カーソルで読んで書き出す
+	 * 
+	 * @param writer
+	 * @return
+	 * @throws IOException
+	 */
+	BulkResult export(ExportWriter writer) throws IOException {
+		long start = System.nanoTime();
+		SessionFactory sf = getSessionFactory();
+		ClassMetadata metadata = Entities.getMetadata(sf, _klass);
+		List<String> names = new ArrayList<>();
+		List<Integer> properties = new ArrayList<>();
+		names.add(metadata.getIdentifierPropertyName());
+		Type[] types = metadata.getPropertyTypes();
+		for (int i = 0; i < types.length; i++) {
+			if (!types[i].isCollectionType()) {
+				names.add(metadata.getPropertyNames()[i]);
+				properties.add(i);
+			}
+		}
+		writer.writeHeader(names.toArray(new String[names.size()]));
+		SessionImplementor session = getSessionImplementor();
+		Set<Object> managed = _session != null ? Entities.managedEntities(_session) : null;
+		try (RakuRakuCursor<T> cursor = cursor(0)) {
+			while (cursor.hasNext()) {
+				T row = cursor.next();
+				writer.field(0, toExportString(session, getIdentifier(row)));
+				Object[] values = metadata.getPropertyValues(row, EntityMode.POJO);
+				for (int i = 0; i < properties.size(); i++) {
+					writer.field(i + 1, toExportString(session, values[properties.get(i)]));
+				}
+				writer.endRow();
+				if (managed != null && _clearEvery > 0 && writer.getRows() % _clearEvery == 0) {
+					Entities.evictExcept(_session, managed);
+				}
+			}
+		}
+		if (managed != null) {
+			Entities.evictExcept(_session, managed);
+		}
+		return new BulkResult(writer.getRows(), System.nanoTime() - start);
+	}
+
+	/**
+	 * 書き出す文字列に変換する (関連エンティティは識別子)
+	 * 
+	 * @param session
+	 * @param value
+	 * @return
+	 */
+	static String toExportString(SessionImplementor session, Object value) {
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof HibernateProxy || session.getFactory().getClassMetadata(value.getClass()) != null) {
+			return String.valueOf(Entities.getIdentifier(session, value));
+		}
+		return value.toString();
+	}
+
+	/**
+	 * クエリを作成する
+	 * 
+	 * @param hql
+	 * @return
+	 */
+	Query createQuery(String hql) {
+		if (_statelessSession != null) {
+			StatelessTx.executeBatch(_statelessSession);
+			return _statelessSession.createQuery(hql);
+		}
+		return _session.createQuery(hql);
+	}
+
+	/**
+	 * 数値のキーの範囲でパーティション分割した並列スキャンを開始する
+	 * 
+	 * @param key
+	 *            ルートエンティティの数値のプロパティ (主キーなど, fetch() した場合もエイリアスなしで指定)
+	 * @param partitions
+	 *            パーティション数 (並列度の上限)
+	 * @return
+	 * @throws IllegalStateException
+	 *             コレクションを fetch した場合
+	 * @see PartitionedScan
+	 */
+	public PartitionedScan<T> partitionBy(String key, int partitions) {
+		rejectCollectionFetch("partitionBy()");
+		return new PartitionedScan<>(this, key, partitions);
+	}
+
+	/**
+	 * キーセットページングで1ページ取得する
+	 * 
+	 * limit() の件数だけ取得し、続きがあれば次のページのキーを返します。
+	 * 
+	 * @return
+	 */
+	public KeysetPage<T> page() {
+		if (_limit == null) {
+			throw new IllegalStateException("page() needs limit()");
+		}
+		int limit = _limit;
+		List<T> rows;
+		_limit = limit + 1;
+		try {
+			rows = list();
+		}
+		finally {
+			_limit = limit;
+		}
+		if (rows.size() <= limit) {
+			return new KeysetPage<>(rows, null);
+		}
+		rows = new ArrayList<>(rows.subList(0, limit));
+		return new KeysetPage<>(rows, keyOf(rows.get(limit - 1)));
+	}
+
+	/**
+	 * 行から orderBy() のカラムの値を取得する
+	 * 
+	 * @param row
+	 * @return
+	 */
+	Object[] keyOf(T row) {
+		SessionImplementor session = getSessionImplementor();
+		Object[] key = new Object[_orderByColumns.length];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = Entities.getProperty(session, row, orderProperty(i));
+		}
+		return key;
+	}
+
+	/**
+	 * order by の i 番目のカラム (書いたまま)
+	 * 
+	 * @param i
+	 * @return
+	 */
+	String orderColumn(int i) {
+		return _orderByColumns[i].trim().split("\\s+")[0];
+	}
+
+	/**
+	 * order by の i 番目のルートエンティティのプロパティ名
+	 * 
+	 * fetch() した場合は {@value #ROOT_ALIAS} の修飾を除きます。
+	 * 
+	 * @param i
+	 * @return
+	 */
+	String orderProperty(int i) {
+		String column = orderColumn(i);
+		String prefix = ROOT_ALIAS + ".";
+		return !_fetches.isEmpty() && column.startsWith(prefix) ? column.substring(prefix.length()) : column;
+	}
+
+	/**
+	 * order by の i 番目が desc か
+	 * 
+	 * @param i
+	 * @return
+	 */
+	boolean orderDesc(int i) {
+		String[] tokens = _orderByColumns[i].trim().split("\\s+");
+		return tokens.length > 1 && tokens[1].equalsIgnoreCase("desc");
+	}
+
+	/**
+	 * 実行するセッションを取得する
+	 * 
+	 * @return
+	 */
+	SessionImplementor getSessionImplementor() {
+		return (SessionImplementor) (_statelessSession != null ? _statelessSession : _session);
+	}
+
+	/**
+	 * Hibernateセッションファクトリを取得する
+	 * 
+	 * @return
+	 */
+	SessionFactory getSessionFactory() {
+		if (_statelessSession != null) {
+			return ((SessionImplementor) _statelessSession).getFactory();
+		}
+		return _session != null ? _session.getSessionFactory() : _factory;
 	}
 }
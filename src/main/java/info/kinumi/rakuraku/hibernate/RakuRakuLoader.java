@@ -0,0 +1,401 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.EntityMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.id.Assigned;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.AbstractStandardBasicType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+/**
+ * RakuRaku loader
+ * 
+ * 区切り文字のファイルをエンティティのテーブルに一括ロードします。
+ * 1行目はヘッダで、カラム名を識別子またはプロパティ名 (大文字小文字と _ を無視) に対応させます。
+ * 関連エンティティ (多対一, 一対一) のカラムは識別子として読み、ロードせずに参照だけを設定します。
+ * 識別子のカラムは assigned の識別子 (ジェネレータなしの @Id) のエンティティだけに指定できます。
+ * 生成される識別子のエンティティでは識別子のカラムを除いてください (IDENTITY では JDBC バッチも効きません)。
+ * null のフィールド (CSV は引用符のない空, TSV は \N) は null に、空のフィールドは文字列なら空文字列、それ以外は null になります。
+ * 
+ * <code>
+ * BulkResult r = tx.load(A.class)
+ *     .rejectTo(Paths.get("a.rejected.csv"))
+ *     .listener(10000, listener)
+ *     .fromCsv(Paths.get("a.csv"));
+ * </code>
+ * 
+ * 変換できない行は reject ファイルに理由を付けて書き出し、ロードを続けます。
+ * データベースのエラー (制約違反など) はバッチ単位で発生するので、例外になります。
+ * 
+ * 大量のロードには StatelessTx を使ってください。
+ * Tx のセッションでは batchSize 件ごとに flush し、ロードで読み込んだエンティティだけを evict します
+ * (呼び出し前からセッションにあるエンティティはそのままです)。
+ * 
+ * @param <T>
+ *            対象エンティティクラス
+ * @author kunimi.ikeda
+ */
+public class RakuRakuLoader<T> {
+
+	/**
+	 * 既定の進捗の間隔
+	 */
+	static final long DEFAULT_PROGRESS_EVERY = 10000;
+
+	/**
+	 * Hibernateセッション
+	 */
+	Session _session;
+
+	/**
+	 * Hibernateステートレスセッション
+	 */
+	StatelessSession _statelessSession;
+
+	/**
+	 * クラス
+	 */
+	Class<T> _klass;
+
+	/**
+	 * flush と clear をする件数
+	 */
+	int _batchSize;
+
+	/**
+	 * reject ファイル
+	 */
+	Path _rejectPath = null;
+
+	/**
+	 * 進捗のリスナ
+	 */
+	LoadListener _listener = null;
+
+	/**
+	 * 進捗の間隔
+	 */
+	long _progressEvery = DEFAULT_PROGRESS_EVERY;
+
+	/**
+	 * 変更したエンティティクラスを記録するトランザクションのセット
+	 */
+	Set<Class<?>> _touched = null;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param klass
+	 * @param session
+	 * @param batchSize
+	 */
+	public RakuRakuLoader(Class<T> klass, Session session, int batchSize) {
+		_klass = klass;
+		_session = session;
+		_batchSize = batchSize;
+	}
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param klass
+	 * @param statelessSession
+	 */
+	public RakuRakuLoader(Class<T> klass, StatelessSession statelessSession) {
+		_klass = klass;
+		_statelessSession = statelessSession;
+	}
+
+	/**
+	 * flush と clear をする件数 (セッションの場合)
+	 * 
+	 * @param batchSize
+	 * @return
+	 */
+	public RakuRakuLoader<T> batchSize(int batchSize) {
+		_batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * 変換できない行を書き出すファイル
+	 * 
+	 * 元のフィールドに理由のカラムを加えて、同じ形式で書き出します。
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public RakuRakuLoader<T> rejectTo(Path path) {
+		_rejectPath = path;
+		return this;
+	}
+
+	/**
+	 * 進捗のリスナ
+	 * 
+	 * reject した行も数えます。最後には必ず呼び出します。
+	 * 
+	 * @param every
+	 *            呼び出す行数の間隔 (0以下なら最後だけ)
+	 * @param listener
+	 * @return
+	 */
+	public RakuRakuLoader<T> listener(long every, LoadListener listener) {
+		_progressEvery = every;
+		_listener = listener;
+		return this;
+	}
+
+	/**
+	 * CSV ファイルからロードする
+	 * 
+	 * @param path
+	 * @return ロードした件数, 1秒あたりの件数, reject した件数
+	 * @throws IOException
+	 */
+	public BulkResult fromCsv(Path path) throws IOException {
+		return from(path, ExportFormat.CSV);
+	}
+
+	/**
+	 * TSV ファイルからロードする
+	 * 
+	 * @param path
+	 * @return ロードした件数, 1秒あたりの件数, reject した件数
+	 * @throws IOException
+	 */
+	public BulkResult fromTsv(Path path) throws IOException {
+		return from(path, ExportFormat.TSV);
+	}
+
+	/**
+	 * ファイルからロードする
+	 * 
+	 * @param path
+	 * @param format
+	 * @return ロードした件数, 1秒あたりの件数, reject した件数
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             ヘッダにプロパティと対応しないカラムがある場合,
+	 *             生成される識別子のエンティティに識別子のカラムがある場合
+	 */
+	public BulkResult from(Path path, ExportFormat format) throws IOException {
+		long start = System.nanoTime();
+		ClassMetadata metadata = Entities.getMetadata(getSessionFactory(), _klass);
+		long loaded = 0;
+		long rejected = 0;
+		try (DelimitedReader reader = new DelimitedReader(path, format);
+			ExportWriter rejects = _rejectPath != null ? ExportWriter.open(_rejectPath, format) : null) {
+			List<String> header = reader.next();
+			if (header == null) {
+				return new BulkResult(0, System.nanoTime() - start);
+			}
+			String[] names = header.toArray(new String[header.size()]);
+			String[] properties = new String[names.length];
+			AbstractStandardBasicType<?>[] types = new AbstractStandardBasicType<?>[names.length];
+			String[] associations = new String[names.length];
+			int idColumn = resolve(metadata, names, properties, types, associations);
+			if (idColumn >= 0) {
+				checkAssignedIdentifier(metadata);
+			}
+			if (rejects != null) {
+				String[] rejectHeader = new String[names.length + 1];
+				System.arraycopy(names, 0, rejectHeader, 0, names.length);
+				rejectHeader[names.length] = "error";
+				rejects.writeHeader(rejectHeader);
+			}
+			if (_touched != null) {
+				_touched.add(_klass);
+			}
+			Set<Object> managed = _session != null ? Entities.managedEntities(_session) : null;
+			List<String> fields;
+			while ((fields = reader.next()) != null) {
+				Object entity = null;
+				try {
+					entity = toEntity(metadata, fields, idColumn, properties, types, associations);
+				}
+				catch (RuntimeException e) {
+					rejected++;
+					if (rejects != null) {
+						for (int i = 0; i < fields.size(); i++) {
+							rejects.field(i, fields.get(i));
+						}
+						rejects.field(fields.size(), "line " + reader.getLine() + ": " + e);
+						rejects.endRow();
+					}
+				}
+				if (entity != null) {
+					save(entity);
+					loaded++;
+					if (_session != null && _batchSize > 0 && loaded % _batchSize == 0) {
+						_session.flush();
+						Entities.evictExcept(_session, managed);
+					}
+				}
+				if (_listener != null && _progressEvery > 0 && (loaded + rejected) % _progressEvery == 0) {
+					_listener.onProgress(loaded, rejected);
+				}
+			}
+			if (_session != null) {
+				_session.flush();
+				Entities.evictExcept(_session, managed);
+			}
+			else {
+				StatelessTx.executeBatch(_statelessSession);
+			}
+		}
+		if (_listener != null) {
+			_listener.onProgress(loaded, rejected);
+		}
+		return new BulkResult(loaded, System.nanoTime() - start, rejected);
+	}
+
+	/**
+	 * ヘッダのカラムを識別子とプロパティに対応させる
+	 * 
+	 * @param metadata
+	 * @param names
+	 * @param properties
+	 *            カラムごとのプロパティ名 (識別子は null)
+	 * @param types
+	 *            カラムごとの型 (関連エンティティは識別子の型)
+	 * @param associations
+	 *            カラムごとの関連エンティティ名 (関連でなければ null)
+	 * @return 識別子のカラムの位置 (なければ -1)
+	 */
+	int resolve(ClassMetadata metadata, String[] names, String[] properties, AbstractStandardBasicType<?>[] types, String[] associations) {
+		SessionFactoryImplementor factory = (SessionFactoryImplementor) getSessionFactory();
+		int idColumn = -1;
+		String[] propertyNames = metadata.getPropertyNames();
+		Type[] propertyTypes = metadata.getPropertyTypes();
+		for (int i = 0; i < names.length; i++) {
+			String name = DtoResultTransformer.normalize(names[i] != null ? names[i] : "");
+			Type type = null;
+			if (name.equals(DtoResultTransformer.normalize(metadata.getIdentifierPropertyName()))) {
+				idColumn = i;
+				type = metadata.getIdentifierType();
+			}
+			else {
+				for (int j = 0; j < propertyNames.length; j++) {
+					if (name.equals(DtoResultTransformer.normalize(propertyNames[j]))) {
+						properties[i] = propertyNames[j];
+						type = propertyTypes[j];
+						break;
+					}
+				}
+			}
+			if (type == null) {
+				throw new IllegalArgumentException("unknown column for " + _klass.getName() + ": " + names[i]);
+			}
+			if (type.isEntityType()) {
+				associations[i] = ((EntityType) type).getAssociatedEntityName(factory);
+				type = factory.getIdentifierType(associations[i]);
+			}
+			if (!(type instanceof AbstractStandardBasicType)) {
+				throw new IllegalArgumentException("can not load column " + names[i] + " of type " + type.getName());
+			}
+			types[i] = (AbstractStandardBasicType<?>) type;
+		}
+		return idColumn;
+	}
+
+	/**
+	 * 識別子が assigned か確認する
+	 * 
+	 * 生成される識別子は save / insert でファイルの値が上書きされ、ほかのファイルからの参照が壊れるので拒否します。
+	 * 
+	 * @param metadata
+	 * @throws IllegalArgumentException
+	 *             生成される識別子の場合
+	 */
+	void checkAssignedIdentifier(ClassMetadata metadata) {
+		SessionFactoryImplementor factory = (SessionFactoryImplementor) getSessionFactory();
+		IdentifierGenerator generator = factory.getIdentifierGenerator(metadata.getEntityName());
+		if (!(generator instanceof Assigned)) {
+			throw new IllegalArgumentException("identifier of " + _klass.getName() + " is generated by " + generator.getClass().getSimpleName()
+				+ "; remove the " + metadata.getIdentifierPropertyName() + " column to load it");
+		}
+	}
+
+	/**
+	 * 1行をエンティティにする
+	 * 
+	 * @param metadata
+	 * @param fields
+	 * @param idColumn
+	 * @param properties
+	 * @param types
+	 * @param associations
+	 * @return
+	 */
+	Object toEntity(ClassMetadata metadata, List<String> fields, int idColumn, String[] properties, AbstractStandardBasicType<?>[] types, String[] associations) {
+		if (fields.size() != properties.length) {
+			throw new IllegalArgumentException("expected " + properties.length + " columns but " + fields.size());
+		}
+		SessionImplementor session = (SessionImplementor) (_statelessSession != null ? _statelessSession : _session);
+		Serializable id = idColumn >= 0 ? (Serializable) toValue(fields.get(idColumn), types[idColumn]) : null;
+		Object entity = metadata.instantiate(id, session);
+		for (int i = 0; i < properties.length; i++) {
+			if (properties[i] != null) {
+				Object value = toValue(fields.get(i), types[i]);
+				if (associations[i] != null && value != null) {
+					value = session.internalLoad(associations[i], (Serializable) value, false, false);
+				}
+				metadata.setPropertyValue(entity, properties[i], value, EntityMode.POJO);
+			}
+		}
+		return entity;
+	}
+
+	/**
+	 * フィールドを値に変換する (文字列以外の空は null)
+	 * 
+	 * @param field
+	 * @param type
+	 * @return
+	 */
+	static Object toValue(String field, AbstractStandardBasicType<?> type) {
+		if (field == null || field.isEmpty() && type.getReturnedClass() != String.class) {
+			return null;
+		}
+		return type.fromStringValue(field);
+	}
+
+	/**
+	 * エンティティを保存する
+	 * 
+	 * @param entity
+	 */
+	void save(Object entity) {
+		if (_session != null) {
+			_session.save(entity);
+		}
+		else {
+			_statelessSession.insert(entity);
+		}
+	}
+
+	/**
+	 * Hibernateセッションファクトリを取得する
+	 * 
+	 * @return
+	 */
+	SessionFactory getSessionFactory() {
+		if (_statelessSession != null) {
+			return ((SessionImplementor) _statelessSession).getFactory();
+		}
+		return _session.getSessionFactory();
+	}
+}
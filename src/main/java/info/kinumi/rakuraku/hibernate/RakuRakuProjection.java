@@ -0,0 +1,190 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+
+/**
+ * RakuRaku projection
+ * 
+ * エンティティではなくカラムの値だけを取得します。
+ * 結果は永続化コンテキストに載りません。
+ * 
+ * <code>
+ * tx.from(A.class).where("a = :a").param("a", 1).select("b", "c").list();
+ * // => List<Object[]>, query by HQL: [select b, c from A where a = 1]
+ * 
+ * tx.from(A.class).select(Integer.class, "b").list();
+ * // => List<Integer>, query by HQL: [select b from A]
+ * 
+ * tx.from(A.class).selectNew(ADto.class, "b", "c").list();
+ * // => List<ADto>, query by HQL: [select new ADto(b, c) from A]
+ * </code>
+ * 
+ * @param <R>
+ *            結果の型
+ * @author kunimi.ikeda
+ */
+public class RakuRakuProjection<R> {
+
+	/**
+	 * Hibernateセッション
+	 */
+	Session _session;
+
+	/**
+	 * Hibernateステートレスセッション
+	 */
+	StatelessSession _statelessSession;
+
+	/**
+	 * HQL
+	 */
+	String _hql;
+
+	/**
+	 * 1カラムの結果を Object[] に包むか
+	 */
+	boolean _wrap;
+
+	/**
+	 * limit
+	 */
+	Integer _limit = null;
+
+	/**
+	 * offset
+	 */
+	Integer _offset = null;
+
+	/**
+	 * パラメータマップ
+	 */
+	Map<String, Object> _params;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param hql
+	 * @param wrap
+	 * @param limit
+	 * @param offset
+	 * @param params
+	 * @param session
+	 * @param statelessSession
+	 */
+	RakuRakuProjection(String hql, boolean wrap, Integer limit, Integer offset, Map<String, Object> params, Session session, StatelessSession statelessSession) {
+		_hql = hql;
+		_wrap = wrap;
+		_limit = limit;
+		_offset = offset;
+		_params = new HashMap<>(params);
+		_session = session;
+		_statelessSession = statelessSession;
+	}
+
+	/**
+	 * limit
+	 * 
+	 * @param limit
+	 * @return
+	 */
+	public RakuRakuProjection<R> limit(int limit) {
+		_limit = limit;
+		return this;
+	}
+
+	/**
+	 * offset
+	 * 
+	 * @param offset
+	 * @return
+	 */
+	public RakuRakuProjection<R> offset(int offset) {
+		_offset = offset;
+		return this;
+	}
+
+	/**
+	 * パラメータのセット
+	 * 
+	 * @param param
+	 * @param value
+	 * @return
+	 */
+	public RakuRakuProjection<R> param(String param, Object value) {
+		_params.put(param, value);
+		return this;
+	}
+
+	/**
+	 * HQLを取得する
+	 * 
+	 * @return
+	 */
+	public String getHQL() {
+		return _hql;
+	}
+
+	/**
+	 * データを1件取得する
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public R uniq() {
+		Query query = createQuery();
+		query.setMaxResults(1);
+		if (_offset != null) {
+			query.setFirstResult(_offset);
+		}
+		query.setProperties(_params);
+		Object o = query.uniqueResult();
+		if (_wrap && o != null) {
+			return (R) new Object[] { o };
+		}
+		return (R) o;
+	}
+
+	/**
+	 * データのリストを取得する
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public List<R> list() {
+		Query query = createQuery();
+		if (_limit != null) {
+			query.setMaxResults(_limit);
+		}
+		if (_offset != null) {
+			query.setFirstResult(_offset);
+		}
+		query.setProperties(_params);
+		List<Object> list = query.list();
+		if (_wrap) {
+			for (ListIterator<Object> it = list.listIterator(); it.hasNext();) {
+				it.set(new Object[] { it.next() });
+			}
+		}
+		return (List<R>) list;
+	}
+
+	/**
+	 * クエリを作成する
+	 * 
+	 * @return
+	 */
+	Query createQuery() {
+		if (_statelessSession != null) {
+			StatelessTx.executeBatch(_statelessSession);
+			return _statelessSession.createQuery(_hql);
+		}
+		return _session.createQuery(_hql);
+	}
+}
@@ -0,0 +1,195 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.util.Collections;
+
+import org.hibernate.QueryException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.hql.ast.HqlParser;
+
+import antlr.RecognitionException;
+import antlr.TokenStreamException;
+
+/**
+ * RakuRaku query
+ * 
+ * 不変でスレッドセーフな組み立て済みのクエリ定義です。
+ * HQLは定義時に1回だけ組み立てて構文をチェックし、実行時には Tx に bind するだけです。
+ * 
+ * <code>
+ * static final RakuRakuQuery<A> FIND_ACTIVE = RakuRakuQuery.from(A.class)
+ *     .where("a = :a")
+ *     .orderBy("b");
+ * 
+ * FIND_ACTIVE.bind(tx)
+ *     .param("a", 1)
+ *     .list();
+ * // => query by HQL: [from A where a = 1 order by b]
+ * </code>
+ * 
+ * @param <T>
+ *            対象エンティティクラス
+ * @author kunimi.ikeda
+ */
+public final class RakuRakuQuery<T> {
+
+	/**
+	 * 句を組み立て済みの finder (実行はしない)
+	 */
+	private final RakuRakuFinder<T> _prototype;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param prototype
+	 */
+	private RakuRakuQuery(RakuRakuFinder<T> prototype) {
+		_prototype = prototype;
+		check(prototype.getHQL());
+	}
+
+	/**
+	 * クエリ定義を開始する
+	 * 
+	 * @param klass
+	 * @return
+	 */
+	public static <T> RakuRakuQuery<T> from(Class<T> klass) {
+		return new RakuRakuQuery<>(new RakuRakuFinder<>(klass, (Session) null));
+	}
+
+	/**
+	 * where
+	 * 
+	 * @param where
+	 * @return 新しいクエリ定義
+	 */
+	public RakuRakuQuery<T> where(String... where) {
+		return new RakuRakuQuery<>(copy().where(where));
+	}
+
+	/**
+	 * order by
+	 * 
+	 * @param orderBy
+	 * @return 新しいクエリ定義
+	 */
+	public RakuRakuQuery<T> orderBy(String... orderBy) {
+		return new RakuRakuQuery<>(copy().orderBy(orderBy));
+	}
+
+	/**
+	 * 関連を left join fetch で同時に取得する
+	 * 
+	 * @param path
+	 * @return 新しいクエリ定義
+	 * @see RakuRakuFinder#fetch(String)
+	 */
+	public RakuRakuQuery<T> fetch(String path) {
+		return new RakuRakuQuery<>(copy().fetch(path));
+	}
+
+	/**
+	 * 対象エンティティクラスを取得する
+	 * 
+	 * @return
+	 */
+	public Class<T> getEntityClass() {
+		return _prototype._klass;
+	}
+
+	/**
+	 * HQLを取得する
+	 * 
+	 * @return
+	 */
+	public String getHQL() {
+		return _prototype.getHQL();
+	}
+
+	/**
+	 * トランザクションに bind して finder を取得する
+	 * 
+	 * @param tx
+	 * @return
+	 */
+	public RakuRakuFinder<T> bind(Tx tx) {
+		return tx.from(_prototype._klass).copyClauses(_prototype);
+	}
+
+	/**
+	 * ステートレスセッションのトランザクションに bind して finder を取得する
+	 * 
+	 * @param tx
+	 * @return
+	 */
+	public RakuRakuFinder<T> bind(StatelessTx tx) {
+		return tx.from(_prototype._klass).copyClauses(_prototype);
+	}
+
+	/**
+	 * HQLを翻訳して Hibernate のクエリプランキャッシュに載せる
+	 * 
+	 * エンティティやプロパティ名の誤りもここで検出されます。
+	 * 
+	 * @param sf
+	 * @throws QueryException
+	 */
+	public void compile(SessionFactory sf) {
+		compile((SessionFactoryImplementor) sf, prototype(sf).getHQL());
+	}
+
+	/**
+	 * セッションファクトリを持つ finder を取得する
+	 * 
+	 * @param sf
+	 * @return
+	 */
+	RakuRakuFinder<T> prototype(SessionFactory sf) {
+		RakuRakuFinder<T> finder = copy();
+		finder._factory = sf;
+		return finder;
+	}
+
+	/**
+	 * HQLをクエリプランキャッシュに載せる
+	 * 
+	 * @param factory
+	 * @param hql
+	 */
+	static void compile(SessionFactoryImplementor factory, String hql) {
+		factory.getQueryPlanCache().getHQLQueryPlan(hql, false, Collections.EMPTY_MAP);
+	}
+
+	@Override
+	public String toString() {
+		return getHQL();
+	}
+
+	/**
+	 * 句をコピーした finder を作成する
+	 * 
+	 * @return
+	 */
+	private RakuRakuFinder<T> copy() {
+		return new RakuRakuFinder<>(_prototype._klass, (Session) null).copyClauses(_prototype);
+	}
+
+	/**
+	 * HQLの構文をチェックする
+	 * 
+	 * @param hql
+	 * @throws QueryException
+	 */
+	private static void check(String hql) {
+		HqlParser parser = HqlParser.getInstance(hql);
+		try {
+			parser.statement();
+		}
+		catch (RecognitionException | TokenStreamException e) {
+			throw new QueryException(e.getMessage(), hql);
+		}
+		parser.getParseErrorHandler().throwQueryException();
+	}
+}
@@ -1,10 +1,14 @@
 package info.kinumi.rakuraku.hibernate;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.hibernate.Query;
 import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.SessionImplementor;
 
 import com.google.common.base.Joiner;
 
@@ -35,6 +39,11 @@ public class RakuRakuUpdater<T> {
 	 */
 	Session _session;
 
+	/**
+	 * Hibernateステートレスセッション
+	 */
+	StatelessSession _statelessSession;
+
 	/**
 	 * クラス
 	 */
@@ -55,6 +64,16 @@ public class RakuRakuUpdater<T> {
 	 */
 	Map<String, Object> _params = new HashMap<>();
 
+	/**
+	 * addBatch() したパラメータセット
+	 */
+	List<Map<String, Object>> _batch = null;
+
+	/**
+	 * 実行したエンティティクラスを記録するトランザクションのセット
+	 */
+	Set<Class<?>> _touched = null;
+
 	/**
 	 * コンストラクタ
 	 * 
@@ -65,6 +84,17 @@ public class RakuRakuUpdater<T> {
 		_session = session;
 	}
 
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param klass
+	 * @param statelessSession
+	 */
+	public RakuRakuUpdater(Class<T> klass, StatelessSession statelessSession) {
+		_klass = klass;
+		_statelessSession = statelessSession;
+	}
+
 	/**
 	 * where
 	 * 
@@ -105,6 +135,60 @@ public class RakuRakuUpdater<T> {
 		return this;
 	}
 
+	/**
+	 * 現在のパラメータをパラメータセットとしてバッチに追加する
+	 * 
+	 * <code>
+	 * RakuRakuUpdater<A> updater = tx.update(A.class).set("b = :b").where("a = :a");
+	 * for (A a : list) {
+	 *     updater.param("a", a.a).param("b", a.b).addBatch();
+	 * }
+	 * int[] counts = updater.executeBatch();
+	 * </code>
+	 * 
+	 * @return
+	 */
+	public RakuRakuUpdater<T> addBatch() {
+		_batch = HQLBatch.add(_batch, _params);
+		return this;
+	}
+
+	/**
+	 * バッチを実行する
+	 * 
+	 * HQLは1回だけ翻訳し、パラメータセットを hibernate.jdbc.batch_size 件ずつJDBCバッチで送ります。
+	 * コレクションのパラメータは使えません。
+	 * 
+	 * @return パラメータセットごとの更新件数
+	 */
+	public int[] executeBatch() {
+		if (_batch == null) {
+			return new int[0];
+		}
+		String hql = getHQL();
+		SessionImplementor session;
+		if (_statelessSession != null) {
+			StatelessTx.executeBatch(_statelessSession);
+			session = (SessionImplementor) _statelessSession;
+		}
+		else {
+			_session.flush();
+			session = (SessionImplementor) _session;
+		}
+		long start = System.nanoTime();
+		int[] counts = HQLBatch.execute(session, hql, _batch);
+		long rows = 0;
+		for (int count : counts) {
+			rows += Math.max(count, 0);
+		}
+		QueryStats.getInstance().record(hql, System.nanoTime() - start, rows, _params.keySet());
+		_batch = null;
+		if (_touched != null) {
+			_touched.add(_klass);
+		}
+		return counts;
+	}
+
 	/**
 	 * HQLを取得する
 	 * 
@@ -125,8 +209,29 @@ public class RakuRakuUpdater<T> {
 	 * @return
 	 */
 	public int execute() {
-		Query query = _session.createQuery(getHQL());
+		String hql = getHQL();
+		Query query = createQuery(hql);
 		query.setProperties(_params);
-		return query.executeUpdate();
+		long start = System.nanoTime();
+		int count = query.executeUpdate();
+		QueryStats.getInstance().record(hql, System.nanoTime() - start, count, _params.keySet());
+		if (_touched != null) {
+			_touched.add(_klass);
+		}
+		return count;
+	}
+
+	/**
+	 * クエリを作成する
+	 * 
+	 * @param hql
+	 * @return
+	 */
+	Query createQuery(String hql) {
+		if (_statelessSession != null) {
+			StatelessTx.executeBatch(_statelessSession);
+			return _statelessSession.createQuery(hql);
+		}
+		return _session.createQuery(hql);
 	}
 }
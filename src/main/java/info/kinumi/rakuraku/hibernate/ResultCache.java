@@ -0,0 +1,296 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.MapMaker;
+
+/**
+ * プロセス内のクエリ結果キャッシュ
+ * 
+ * HQLとパラメータをキーに、finder の結果のエンティティの ID を TTL とサイズの上限付きで保持します。
+ * ヒットしたら呼び出し元のセッションで ID から解決し直すので、エンティティをセッションやスレッドで共有しません。
+ * セッションにも二次キャッシュにもないエンティティは主キーの in 検索で読み込むので、
+ * SQL を省けるのはそれらにエンティティが載っている場合だけです。
+ * 
+ * Tx / StatelessTx で save / update / delete したり、ダーティチェックで flush したり、
+ * RakuRakuUpdater / RakuRakuDeleter を実行したりすると、コミット後にそのクラスのエントリを破棄します。
+ * コミット前でも、このクラスを変更 (flush) したトランザクションではキャッシュを使いません。
+ * 未 flush の変更は見えないので、必要なら flush してから検索してください。
+ * 破棄より前に開始した検索の結果は、破棄の後にはキャッシュしません。
+ * ネイティブ SQL やほかのプロセスでの変更は TTL が切れるまで反映されません。
+ * 
+ * <code>
+ * static final ResultCache CACHE = new ResultCache(1000, 10, TimeUnit.MINUTES);
+ * 
+ * tx.from(A.class).where("a = :a").param("a", 1).cacheIn(CACHE).list();
+ * </code>
+ * 
+ * @author kunimi.ikeda
+ */
+public class ResultCache {
+
+	/**
+	 * 生存中の全キャッシュ
+	 */
+	static final Set<ResultCache> CACHES = Collections.newSetFromMap(new MapMaker().weakKeys().<ResultCache, Boolean> makeMap());
+
+	/**
+	 * null の結果を表す値
+	 */
+	static final Object NULL = new Object();
+
+	/**
+	 * キャッシュ本体
+	 */
+	Cache<Key, Object> _cache;
+
+	/**
+	 * エンティティクラスごとのキー (this で同期)
+	 */
+	final Map<Class<?>, Set<Key>> _keys = new HashMap<>();
+
+	/**
+	 * エンティティクラスごとの最後に破棄した世代 (this で同期)
+	 */
+	final Map<Class<?>, Long> _invalidated = new HashMap<>();
+
+	/**
+	 * 世代 (this で同期)
+	 */
+	long _generation = 0;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param maximumSize
+	 *            エントリ数の上限
+	 * @param ttl
+	 *            有効期間
+	 * @param unit
+	 */
+	public ResultCache(long maximumSize, long ttl, TimeUnit unit) {
+		_cache = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(ttl, unit)
+			.removalListener(new RemovalListener<Key, Object>() {
+				@Override
+				public void onRemoval(RemovalNotification<Key, Object> notification) {
+					if (notification.wasEvicted()) {
+						unindex(notification.getKey());
+					}
+				}
+			})
+			.build();
+		CACHES.add(this);
+	}
+
+	/**
+	 * エントリ数を取得する
+	 * 
+	 * @return
+	 */
+	public long size() {
+		return _cache.size();
+	}
+
+	/**
+	 * エンティティクラスに関係するエントリを破棄する
+	 * 
+	 * サブクラス、スーパークラスのエントリも破棄します。
+	 * 
+	 * @param klass
+	 */
+	public synchronized void invalidate(Class<?> klass) {
+		_invalidated.put(klass, ++_generation);
+		for (Iterator<Map.Entry<Class<?>, Set<Key>>> i = _keys.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<Class<?>, Set<Key>> entry = i.next();
+			if (isRelated(entry.getKey(), klass)) {
+				_cache.invalidateAll(entry.getValue());
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * 全エントリを破棄する
+	 */
+	public synchronized void invalidateAll() {
+		_invalidated.put(Object.class, ++_generation);
+		_keys.clear();
+		_cache.invalidateAll();
+	}
+
+	/**
+	 * 現在の世代を取得する
+	 * 
+	 * 検索を始める前に取得して put() に渡します。
+	 * 
+	 * @return
+	 */
+	synchronized long generation() {
+		return _generation;
+	}
+
+	/**
+	 * キャッシュされた結果 (ID またはIDのリスト) を取得する
+	 * 
+	 * @param key
+	 * @return キャッシュされていなければ null, 結果が null なら NULL
+	 */
+	Object get(Key key) {
+		return _cache.getIfPresent(key);
+	}
+
+	/**
+	 * 結果をキャッシュする
+	 * 
+	 * 検索を始めた後にこのクラスのエントリを破棄していたら、古い結果なのでキャッシュしません。
+	 * 
+	 * @param key
+	 * @param value
+	 * @param generation
+	 *            検索を始める前に generation() で取得した世代
+	 * @return キャッシュしたか
+	 */
+	synchronized boolean put(Key key, Object value, long generation) {
+		for (Map.Entry<Class<?>, Long> entry : _invalidated.entrySet()) {
+			if (entry.getValue() > generation && isRelated(entry.getKey(), key._klass)) {
+				return false;
+			}
+		}
+		_cache.put(key, value != null ? value : NULL);
+		Set<Key> keys = _keys.get(key._klass);
+		if (keys == null) {
+			keys = new HashSet<>();
+			_keys.put(key._klass, keys);
+		}
+		keys.add(key);
+		return true;
+	}
+
+	/**
+	 * 追い出されたエントリのキーを索引から除く
+	 * 
+	 * @param key
+	 */
+	synchronized void unindex(Key key) {
+		Set<Key> keys = _keys.get(key._klass);
+		if (keys != null && _cache.getIfPresent(key) == null) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				_keys.remove(key._klass);
+			}
+		}
+	}
+
+	/**
+	 * 継承関係にあるクラスか
+	 * 
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	static boolean isRelated(Class<?> a, Class<?> b) {
+		return a.isAssignableFrom(b) || b.isAssignableFrom(a);
+	}
+
+	/**
+	 * 全キャッシュからエンティティクラスに関係するエントリを破棄する
+	 * 
+	 * @param classes
+	 */
+	static void invalidate(Collection<Class<?>> classes) {
+		if (classes.isEmpty()) {
+			return;
+		}
+		for (ResultCache cache : CACHES) {
+			for (Class<?> klass : classes) {
+				cache.invalidate(klass);
+			}
+		}
+	}
+
+	/**
+	 * キャッシュのキー
+	 */
+	static class Key {
+
+		/**
+		 * エンティティクラス
+		 */
+		final Class<?> _klass;
+
+		/**
+		 * HQL
+		 */
+		final String _hql;
+
+		/**
+		 * パラメータマップ
+		 */
+		final Map<String, Object> _params;
+
+		/**
+		 * limit
+		 */
+		final Integer _limit;
+
+		/**
+		 * offset
+		 */
+		final Integer _offset;
+
+		/**
+		 * uniq() の結果か
+		 */
+		final boolean _uniq;
+
+		/**
+		 * コンストラクタ
+		 * 
+		 * @param klass
+		 * @param hql
+		 * @param params
+		 * @param limit
+		 * @param offset
+		 * @param uniq
+		 */
+		Key(Class<?> klass, String hql, Map<String, Object> params, Integer limit, Integer offset, boolean uniq) {
+			_klass = klass;
+			_hql = hql;
+			_params = new HashMap<>(params);
+			_limit = limit;
+			_offset = offset;
+			_uniq = uniq;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(_klass, _hql, _params, _limit, _offset, _uniq);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return _klass == other._klass
+				&& _hql.equals(other._hql)
+				&& _params.equals(other._params)
+				&& Objects.equal(_limit, other._limit)
+				&& Objects.equal(_offset, other._offset)
+				&& _uniq == other._uniq;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.hibernate.JDBCException;
+import org.hibernate.OptimisticLockException;
+import org.hibernate.PessimisticLockException;
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.LockAcquisitionException;
+
+/**
+ * Tx.run() のリトライ方針
+ * 
+ * デッドロック、ロック待ちタイムアウト、楽観ロックの競合をリトライ可能とし、
+ * ジッター付きの指数バックオフで待ってから新しいトランザクションでやり直します。
+ * 
+ * SQLState は 40001 (シリアライズ失敗, H2 / MySQL のデッドロック), 40P01 (PostgreSQL のデッドロック),
+ * 55P03 (PostgreSQL のロック取得失敗), HYT00 (H2 のロック待ちタイムアウト) を、
+ * ベンダーのエラーコードは 1205 (MySQL のロック待ちタイムアウト) をリトライ可能とします。
+ * ほかのデータベースでは sqlStates() / errorCodes() で指定してください。
+ * 
+ * <code>
+ * RetryPolicy policy = new RetryPolicy()
+ *     .maxAttempts(10)
+ *     .backoff(20, 2000)
+ *     .budgetMillis(10000)
+ *     .sqlStates("40001", "61000")
+ *     .errorCodes(60);
+ * Tx.run(sf, policy, callback);
+ * </code>
+ * 
+ * @author kunimi.ikeda
+ */
+public class RetryPolicy {
+
+	/**
+	 * 既定のリトライ可能な SQLState
+	 */
+	static final Set<String> DEFAULT_SQL_STATES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("40001", "40P01", "55P03", "HYT00")));
+
+	/**
+	 * 既定のリトライ可能なベンダーのエラーコード
+	 */
+	static final Set<Integer> DEFAULT_ERROR_CODES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(1205)));
+
+	/**
+	 * 既定の方針
+	 */
+	static final RetryPolicy DEFAULT = new RetryPolicy();
+
+	/**
+	 * 最大試行回数 (初回を含む)
+	 */
+	int _maxAttempts = 5;
+
+	/**
+	 * 最初のバックオフの上限 (ミリ秒)
+	 */
+	long _initialBackoffMillis = 10;
+
+	/**
+	 * バックオフの上限 (ミリ秒)
+	 */
+	long _maxBackoffMillis = 1000;
+
+	/**
+	 * 初回の開始からリトライを諦めるまでの時間 (ミリ秒)
+	 */
+	long _budgetMillis = 5000;
+
+	/**
+	 * リトライ可能な SQLState
+	 */
+	Set<String> _sqlStates = DEFAULT_SQL_STATES;
+
+	/**
+	 * リトライ可能なベンダーのエラーコード
+	 */
+	Set<Integer> _errorCodes = DEFAULT_ERROR_CODES;
+
+	/**
+	 * 最大試行回数 (初回を含む)
+	 * 
+	 * @param maxAttempts
+	 * @return
+	 */
+	public RetryPolicy maxAttempts(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+		}
+		_maxAttempts = maxAttempts;
+		return this;
+	}
+
+	/**
+	 * バックオフ
+	 * 
+	 * n 回目のリトライは 0 から min(max, initial * 2^(n-1)) ミリ秒のランダムな時間待ちます。
+	 * 
+	 * @param initialMillis
+	 * @param maxMillis
+	 * @return
+	 */
+	public RetryPolicy backoff(long initialMillis, long maxMillis) {
+		_initialBackoffMillis = initialMillis;
+		_maxBackoffMillis = maxMillis;
+		return this;
+	}
+
+	/**
+	 * 初回の開始からリトライを諦めるまでの時間
+	 * 
+	 * @param budgetMillis
+	 * @return
+	 */
+	public RetryPolicy budgetMillis(long budgetMillis) {
+		_budgetMillis = budgetMillis;
+		return this;
+	}
+
+	/**
+	 * リトライ可能な SQLState (既定の SQLState を置き換える)
+	 * 
+	 * @param sqlStates
+	 * @return
+	 */
+	public RetryPolicy sqlStates(String... sqlStates) {
+		_sqlStates = new HashSet<>(Arrays.asList(sqlStates));
+		return this;
+	}
+
+	/**
+	 * リトライ可能なベンダーのエラーコード (既定のエラーコードを置き換える)
+	 * 
+	 * @param errorCodes
+	 * @return
+	 */
+	public RetryPolicy errorCodes(int... errorCodes) {
+		_errorCodes = new HashSet<>();
+		for (int errorCode : errorCodes) {
+			_errorCodes.add(errorCode);
+		}
+		return this;
+	}
+
+	/**
+	 * リトライ可能な例外か
+	 * 
+	 * 原因の例外もたどって判定します。
+	 * 
+	 * @param e
+	 * @return
+	 */
+	public boolean isRetriable(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause() != t ? t.getCause() : null) {
+			if (t instanceof StaleStateException
+				|| t instanceof OptimisticLockException
+				|| t instanceof PessimisticLockException
+				|| t instanceof LockAcquisitionException) {
+				return true;
+			}
+			SQLException sql = null;
+			if (t instanceof JDBCException) {
+				sql = ((JDBCException) t).getSQLException();
+			}
+			else if (t instanceof SQLException) {
+				sql = (SQLException) t;
+			}
+			if (sql != null && (_sqlStates.contains(sql.getSQLState()) || _errorCodes.contains(sql.getErrorCode()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * リトライ前に待つ時間
+	 * 
+	 * @param retry
+	 *            1 から始まるリトライ回数
+	 * @param random
+	 * @return ミリ秒
+	 */
+	long backoffMillis(int retry, Random random) {
+		long ceiling = Math.min(_maxBackoffMillis, _initialBackoffMillis << Math.min(retry - 1, 30));
+		return ceiling > 0 ? (long) (random.nextDouble() * ceiling) : 0;
+	}
+}
@@ -0,0 +1,26 @@
+package info.kinumi.rakuraku.hibernate;
+
+/**
+ * 1行ずつ結果を受け取るハンドラ
+ * 
+ * <code>
+ * tx.from(A.class).forEach(new RowHandler<A>() {
+ *     public void handle(A row) {
+ *         ...
+ *     }
+ * });
+ * </code>
+ * 
+ * @param <T>
+ *            対象エンティティクラス
+ * @author kunimi.ikeda
+ */
+public interface RowHandler<T> {
+
+	/**
+	 * 1行を処理する
+	 * 
+	 * @param row
+	 */
+	void handle(T row);
+}
@@ -1,34 +1,62 @@
 package info.kinumi.rakuraku.hibernate;
 
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.hibernate.Query;
+import org.hibernate.FlushMode;
+import org.hibernate.QueryException;
+import org.hibernate.SQLQuery;
 import org.hibernate.Session;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.query.ParameterParser;
+import org.hibernate.jdbc.Work;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.Joinable;
+import org.hibernate.transform.BasicTransformerAdapter;
+import org.hibernate.transform.ResultTransformer;
 
 import com.google.common.base.Joiner;
 
 /**
- * RakuRaku finder
+ * RakuRaku native SQL executor
  * 
- * <code>
- * tx.from(A.class).getClass();
- * // => RakuRakuFinder<A>
+ * HQL の解析と変換をせずに、ネイティブSQLを createSQLQuery() で実行します。
  * 
- * tx.from(A.class)
+ * <code>
+ * tx.sql(A.class)
  *     .where("a = :a")
  *     .orderBy("b")
  *     .limit(10)
- *     .offset(100)
  *     .param("a", 1)
  *     .list();
- * // => query by HQL: [from A where a = 1 order by b]
- * //				and setMaxResult(10), setFirstResult(100)
+ * // => query by SQL: [select * from a where (a = :a) order by b] => List<A>
+ * 
+ * tx.sql(ADto.class, "select a, count(*) as cnt from a group by a")
+ *     .list();
+ * // => List<ADto> (カラム名と同じ名前のフィールドにセット)
+ * 
+ * tx.sql("select a, b from a")
+ *     .list();
+ * // => List<Object[]>
+ * 
+ * tx.sql("select id, price from a")
+ *     .columns();
+ * // => ColumnarResult (int[], double[], ...)
  * </code>
  * 
  * @param <T>
- *            対象エンティティクラス
+ *            エンティティ, DTO, または Object[]
  * @author kunimi.ikeda
  */
 public class SQLExecutor<T> {
@@ -43,6 +71,16 @@ public class SQLExecutor<T> {
 	 */
 	Class<T> _klass;
 
+	/**
+	 * エンティティクラスか
+	 */
+	boolean _entity;
+
+	/**
+	 * select ... from ...
+	 */
+	String _select;
+
 	/**
 	 * where
 	 */
@@ -68,14 +106,43 @@ public class SQLExecutor<T> {
 	 */
 	Map<String, Object> _params = new HashMap<>();
 
+	/**
+	 * DTO / Object[] への変換 (カラムの対応をキャッシュするので使い回す)
+	 */
+	ResultTransformer _transformer;
+
 	/**
 	 * コンストラクタ
 	 * 
+	 * エンティティのテーブルの全カラムを取得します。
+	 * 
 	 * @param klass
+	 *            エンティティクラス
 	 */
 	public SQLExecutor(Class<T> klass, Session session) {
+		this(klass, "select * from " + getTableName(session, klass), session);
+	}
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param klass
+	 *            エンティティ, DTO, または Object[]
+	 * @param select
+	 *            select ... from ... (where, order by を除く)
+	 * @param session
+	 */
+	public SQLExecutor(Class<T> klass, String select, Session session) {
 		_klass = klass;
+		_select = select;
 		_session = session;
+		_entity = session.getSessionFactory().getClassMetadata(klass) != null;
+		if (klass == Object[].class) {
+			_transformer = ArrayResultTransformer.INSTANCE;
+		}
+		else if (!_entity) {
+			_transformer = new DtoResultTransformer<>(klass);
+		}
 	}
 
 	/**
@@ -141,17 +208,16 @@ public class SQLExecutor<T> {
 	}
 
 	/**
-	 * HQLを取得する
+	 * SQLを取得する
 	 * 
 	 * @return
 	 */
-	public String getHQL() {
-		StringBuilder hql = new StringBuilder(100);
-		hql.append("from ");
-		hql.append(_klass.getCanonicalName());
-		hql.append(_where);
-		hql.append(_orderBy);
-		return hql.toString();
+	public String getSQL() {
+		StringBuilder sql = new StringBuilder(100);
+		sql.append(_select);
+		sql.append(_where);
+		sql.append(_orderBy);
+		return sql.toString();
 	}
 
 	/**
@@ -161,13 +227,16 @@ public class SQLExecutor<T> {
 	 */
 	@SuppressWarnings("unchecked")
 	public T uniq() {
-		Query query = _session.createQuery(getHQL());
+		SQLQuery query = createQuery();
 		query.setMaxResults(1);
 		if (_offset != null) {
 			query.setFirstResult(_offset);
 		}
 		query.setProperties(_params);
-		return (T) query.uniqueResult();
+		long start = System.nanoTime();
+		T o = (T) query.uniqueResult();
+		QueryStats.getInstance().record(getSQL(), System.nanoTime() - start, o != null ? 1 : 0, _params.keySet());
+		return o;
 	}
 
 	/**
@@ -177,7 +246,7 @@ public class SQLExecutor<T> {
 	 */
 	@SuppressWarnings("unchecked")
 	public List<T> list() {
-		Query query = _session.createQuery(getHQL());
+		SQLQuery query = createQuery();
 		if (_limit != null) {
 			query.setMaxResults(_limit);
 		}
@@ -185,6 +254,260 @@ public class SQLExecutor<T> {
 			query.setFirstResult(_offset);
 		}
 		query.setProperties(_params);
-		return (List<T>) query.list();
+		long start = System.nanoTime();
+		List<T> list = (List<T>) query.list();
+		QueryStats.getInstance().record(getSQL(), System.nanoTime() - start, list.size(), _params.keySet());
+		return list;
+	}
+
+	/**
+	 * 列指向で取得する
+	 * 
+	 * Hibernate を通さずに JDBC の ResultSet からカラムごとのプリミティブ配列に読み込みます。
+	 * エンティティや DTO へのマッピングはしません。
+	 * 
+	 * @return
+	 * @see ColumnarResult
+	 */
+	public ColumnarResult columns() {
+		final ColumnarResult[] result = new ColumnarResult[1];
+		long start = System.nanoTime();
+		query(new ResultSetWork() {
+			@Override
+			public void execute(ResultSet rs) throws SQLException {
+				result[0] = ColumnarResult.read(rs, _offset != null ? _offset : 0, _limit);
+			}
+		});
+		QueryStats.getInstance().record(getSQL(), System.nanoTime() - start, result[0].size(), _params.keySet());
+		return result[0];
+	}
+
+	/**
+	 * ファイルに書き出す
+	 * 
+	 * @param path
+	 *            既存のファイルは上書きします
+	 * @param format
+	 * @return 行数と1秒あたりの行数
+	 * @throws IOException
+	 * @see #exportTo(WritableByteChannel, ExportFormat)
+	 */
+	public BulkResult exportTo(Path path, ExportFormat format) throws IOException {
+		try (ExportWriter writer = ExportWriter.open(path, format)) {
+			return export(writer);
+		}
+	}
+
+	/**
+	 * チャネルに書き出す
+	 * 
+	 * JDBC の ResultSet から1行ずつ読み、カラムのラベルをヘッダにして書き出します。
+	 * エンティティや DTO へのマッピングはしません。チャネルは閉じません。
+	 * null は CSV では引用符のない空、TSV では \N で、空文字列と区別します。
+	 * 
+	 * @param channel
+	 * @param format
+	 * @return 行数と1秒あたりの行数
+	 * @throws IOException
+	 */
+	public BulkResult exportTo(WritableByteChannel channel, ExportFormat format) throws IOException {
+		try (ExportWriter writer = new ExportWriter(channel, false, format)) {
+			return export(writer);
+		}
+	}
+
+	/**
+	 * ResultSet を読んで書き出す
+	 * 
+	 * @param writer
+	 * @return
+	 * @throws IOException
+	 */
+	BulkResult export(final ExportWriter writer) throws IOException {
+		long start = System.nanoTime();
+		final IOException[] failure = new IOException[1];
+		query(new ResultSetWork() {
+			@Override
+			public void execute(ResultSet rs) throws SQLException {
+				try {
+					ResultSetMetaData meta = rs.getMetaData();
+					String[] names = new String[meta.getColumnCount()];
+					for (int i = 0; i < names.length; i++) {
+						names[i] = meta.getColumnLabel(i + 1);
+					}
+					writer.writeHeader(names);
+					for (int i = 0; i < (_offset != null ? _offset : 0) && rs.next(); i++) {
+						// skip
+					}
+					while ((_limit == null || writer.getRows() < _limit) && rs.next()) {
+						for (int i = 0; i < names.length; i++) {
+							writer.field(i, rs.getString(i + 1));
+						}
+						writer.endRow();
+					}
+				}
+				catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		});
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		long nanos = System.nanoTime() - start;
+		QueryStats.getInstance().record(getSQL(), nanos, writer.getRows(), _params.keySet());
+		return new BulkResult(writer.getRows(), nanos);
+	}
+
+	/**
+	 * JDBC で直接実行して ResultSet を処理する
+	 * 
+	 * 名前付きパラメータは ? に置き換えてバインドします。
+	 * 
+	 * @param work
+	 */
+	void query(final ResultSetWork work) {
+		if (_session.getFlushMode() != FlushMode.MANUAL) {
+			_session.flush();
+		}
+		final List<Object> values = new ArrayList<>();
+		final String sql = toJdbcSQL(getSQL(), _params, values);
+		_session.doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				try (PreparedStatement ps = connection.prepareStatement(sql)) {
+					int fetchSize = RakuRakuFinder.DEFAULT_CURSOR_FETCH_SIZE;
+					if (_limit != null) {
+						int maxRows = (_offset != null ? _offset : 0) + _limit;
+						ps.setMaxRows(maxRows);
+						fetchSize = Math.min(fetchSize, maxRows);
+					}
+					ps.setFetchSize(fetchSize);
+					for (int i = 0; i < values.size(); i++) {
+						ps.setObject(i + 1, values.get(i));
+					}
+					try (ResultSet rs = ps.executeQuery()) {
+						work.execute(rs);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * 名前付きパラメータを ? に置き換える
+	 * 
+	 * コレクションのパラメータは要素の数だけ ? を並べます。
+	 * 
+	 * @param sql
+	 * @param params
+	 * @param values
+	 *            バインドする値を順に追加する
+	 * @return
+	 */
+	static String toJdbcSQL(String sql, final Map<String, Object> params, final List<Object> values) {
+		final StringBuilder jdbc = new StringBuilder(sql.length());
+		ParameterParser.parse(sql, new ParameterParser.Recognizer() {
+			@Override
+			public void outParameter(int position) {
+				throw new QueryException("out parameter is not supported", jdbc.toString());
+			}
+
+			@Override
+			public void ordinalParameter(int position) {
+				throw new QueryException("ordinal parameter is not supported, use named parameter", jdbc.toString());
+			}
+
+			@Override
+			public void namedParameter(String name, int position) {
+				if (!params.containsKey(name)) {
+					throw new QueryException("no value for parameter: " + name, jdbc.toString());
+				}
+				Object value = params.get(name);
+				if (value instanceof Collection) {
+					int i = 0;
+					for (Object o : (Collection<?>) value) {
+						jdbc.append(i++ > 0 ? ", ?" : "?");
+						values.add(o);
+					}
+				}
+				else {
+					jdbc.append('?');
+					values.add(value);
+				}
+			}
+
+			@Override
+			public void jpaPositionalParameter(String name, int position) {
+				namedParameter(name, position);
+			}
+
+			@Override
+			public void other(char character) {
+				jdbc.append(character);
+			}
+		});
+		return jdbc.toString();
+	}
+
+	/**
+	 * クエリを作成する
+	 * 
+	 * @return
+	 */
+	SQLQuery createQuery() {
+		SQLQuery query = _session.createSQLQuery(getSQL());
+		if (_entity) {
+			query.addEntity(_klass);
+		}
+		else {
+			query.setResultTransformer(_transformer);
+		}
+		return query;
+	}
+
+	/**
+	 * エンティティのテーブル名を取得する
+	 * 
+	 * @param session
+	 * @param klass
+	 * @return
+	 */
+	static String getTableName(Session session, Class<?> klass) {
+		ClassMetadata metadata = Entities.getMetadata(session.getSessionFactory(), klass);
+		SessionFactoryImplementor factory = (SessionFactoryImplementor) session.getSessionFactory();
+		return ((Joinable) factory.getEntityPersister(metadata.getEntityName())).getTableName();
+	}
+
+	/**
+	 * ResultSet の処理
+	 */
+	interface ResultSetWork {
+
+		/**
+		 * 処理する
+		 * 
+		 * @param rs
+		 * @throws SQLException
+		 */
+		void execute(ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * 1カラムの場合も Object[] で返す
+	 */
+	static class ArrayResultTransformer extends BasicTransformerAdapter {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * インスタンス
+		 */
+		static final ArrayResultTransformer INSTANCE = new ArrayResultTransformer();
+
+		@Override
+		public Object transformTuple(Object[] tuple, String[] aliases) {
+			return tuple;
+		}
 	}
 }
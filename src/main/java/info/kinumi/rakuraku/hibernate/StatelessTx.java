@@ -0,0 +1,225 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hibernate.Hibernate;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.engine.SessionImplementor;
+
+/**
+ * try-with-resourcesを使ったステートレスセッションのトランザクション
+ * 
+ * try (StatelessTx tx = new StatelessTx(sf)) { ... tx.commit(); }
+ * 
+ * 永続化コンテキスト、ダーティチェック、カスケードを持たないので、
+ * 大量データの取り込みや出力に向いています。
+ * tryブロック中でcommit()がコールされなかった場合はロールバックします
+ * 
+ * @author kunimi.ikeda
+ */
+public class StatelessTx implements AutoCloseable {
+	@Override
+	public void close() {
+		try {
+			if (_tx.isActive()) {
+				_tx.rollback();
+			}
+		}
+		finally {
+			if (!((SessionImplementor) _session).isClosed()) {
+				_session.close();
+			}
+		}
+	}
+
+	/**
+	 * Hibernateステートレスセッション
+	 */
+	private StatelessSession _session;
+	/**
+	 * Hibernateトランザクション
+	 */
+	private Transaction _tx;
+	/**
+	 * 変更したエンティティクラス (コミット後に ResultCache から破棄する)
+	 */
+	private Set<Class<?>> _touched = new HashSet<>();
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param sf
+	 */
+	public StatelessTx(SessionFactory sf) {
+		_session = sf.openStatelessSession();
+		_tx = _session.beginTransaction();
+	}
+
+	/**
+	 * Begins fluent finder.
+	 * 
+	 * @param klass
+	 * @return
+	 * @see Tx#from(Class)
+	 */
+	public <T> RakuRakuFinder<T> from(Class<T> klass) {
+		RakuRakuFinder<T> finder = new RakuRakuFinder<T>(klass, _session);
+		finder._touched = _touched;
+		return finder;
+	}
+
+	/**
+	 * Begins fluent deleter.
+	 * 
+	 * @param klass
+	 * @return
+	 * @see Tx#delete(Class)
+	 */
+	public <T> RakuRakuDeleter<T> delete(Class<T> klass) {
+		RakuRakuDeleter<T> deleter = new RakuRakuDeleter<>(klass, _session);
+		deleter._touched = _touched;
+		return deleter;
+	}
+
+	/**
+	 * Begins fluent updater.
+	 * 
+	 * @param klass
+	 * @return
+	 * @see Tx#update(Class)
+	 */
+	public <T> RakuRakuUpdater<T> update(Class<T> klass) {
+		RakuRakuUpdater<T> updater = new RakuRakuUpdater<>(klass, _session);
+		updater._touched = _touched;
+		return updater;
+	}
+
+	/**
+	 * get.
+	 * 
+	 * @param klass
+	 * @param id
+	 * @return Entity or null
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(Class<T> klass, Serializable id) {
+		executeBatch(_session);
+		return (T) _session.get(klass, id);
+	}
+
+	/**
+	 * insert.
+	 * 
+	 * @param o
+	 *            Entity to insert
+	 * @return
+	 */
+	public Serializable insert(Object o) {
+		_touched.add(Hibernate.getClass(o));
+		return _session.insert(o);
+	}
+
+	/**
+	 * insert all.
+	 * 
+	 * @param entities
+	 *            Entities to insert
+	 * @return count and rows per second
+	 */
+	public BulkResult insertAll(Iterable<?> entities) {
+		long start = System.nanoTime();
+		long count = 0;
+		for (Object o : entities) {
+			_touched.add(Hibernate.getClass(o));
+			_session.insert(o);
+			count++;
+		}
+		return new BulkResult(count, System.nanoTime() - start);
+	}
+
+	/**
+	 * Begins bulk loader from a delimited file.
+	 * 
+	 * Rows are inserted through the JDBC batch of the stateless session.
+	 * 
+	 * @param klass
+	 * @return
+	 * @see Tx#load(Class)
+	 */
+	public <T> RakuRakuLoader<T> load(Class<T> klass) {
+		RakuRakuLoader<T> loader = new RakuRakuLoader<>(klass, _session);
+		loader._touched = _touched;
+		return loader;
+	}
+
+	/**
+	 * update.
+	 * 
+	 * @param o
+	 *            Detached entity to update
+	 */
+	public void update(Object o) {
+		_touched.add(Hibernate.getClass(o));
+		_session.update(o);
+	}
+
+	/**
+	 * delete.
+	 * 
+	 * @param o
+	 *            Detached entity to delete
+	 */
+	public void delete(Object o) {
+		_touched.add(Hibernate.getClass(o));
+		_session.delete(o);
+	}
+
+	/**
+	 * Executes pending JDBC batch.
+	 * 
+	 * StatelessSession puts inserts, updates and deletes into the JDBC batch
+	 * and executes them at commit, so they must be executed before a query
+	 * can see them.
+	 */
+	public void flush() {
+		executeBatch(_session);
+	}
+
+	/**
+	 * Commits active transaction.
+	 */
+	public void commit() {
+		try {
+			long start = System.nanoTime();
+			_tx.commit();
+			QueryStats.getInstance().record(Tx.COMMIT, System.nanoTime() - start, 0, Collections.<String> emptySet());
+			ResultCache.invalidate(_touched);
+		}
+		finally {
+			_session.close();
+		}
+	}
+
+	/**
+	 * Gets the hibernate's stateless session
+	 * 
+	 * @return StatelessSession
+	 */
+	public StatelessSession getSession() {
+		return _session;
+	}
+
+	/**
+	 * Executes pending JDBC batch of the stateless session.
+	 * 
+	 * @param session
+	 */
+	static void executeBatch(StatelessSession session) {
+		((SessionImplementor) session).getBatcher().executeBatch();
+	}
+}
@@ -0,0 +1,157 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.hibernate.CallbackException;
+import org.hibernate.EntityMode;
+import org.hibernate.Hibernate;
+import org.hibernate.Interceptor;
+import org.hibernate.Transaction;
+import org.hibernate.collection.PersistentCollection;
+import org.hibernate.type.Type;
+
+/**
+ * 書き込んだエンティティクラスを記録するインターセプタ
+ * 
+ * 明示的な save / update / delete だけでなく、ダーティチェックによる flush も記録します。
+ * 処理は設定済みのインターセプタに委譲します。
+ * 
+ * @author kunimi.ikeda
+ */
+class TouchedInterceptor implements Interceptor, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 委譲先のインターセプタ
+	 */
+	final Interceptor _delegate;
+
+	/**
+	 * 書き込んだエンティティクラス
+	 */
+	final Set<Class<?>> _touched;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param delegate
+	 * @param touched
+	 */
+	TouchedInterceptor(Interceptor delegate, Set<Class<?>> touched) {
+		_delegate = delegate;
+		_touched = touched;
+	}
+
+	@Override
+	public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) throws CallbackException {
+		return _delegate.onLoad(entity, id, state, propertyNames, types);
+	}
+
+	@Override
+	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState, String[] propertyNames, Type[] types) throws CallbackException {
+		_touched.add(Hibernate.getClass(entity));
+		return _delegate.onFlushDirty(entity, id, currentState, previousState, propertyNames, types);
+	}
+
+	@Override
+	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) throws CallbackException {
+		_touched.add(Hibernate.getClass(entity));
+		return _delegate.onSave(entity, id, state, propertyNames, types);
+	}
+
+	@Override
+	public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) throws CallbackException {
+		_touched.add(Hibernate.getClass(entity));
+		_delegate.onDelete(entity, id, state, propertyNames, types);
+	}
+
+	@Override
+	public void onCollectionRecreate(Object collection, Serializable key) throws CallbackException {
+		touchOwner(collection);
+		_delegate.onCollectionRecreate(collection, key);
+	}
+
+	@Override
+	public void onCollectionRemove(Object collection, Serializable key) throws CallbackException {
+		touchOwner(collection);
+		_delegate.onCollectionRemove(collection, key);
+	}
+
+	@Override
+	public void onCollectionUpdate(Object collection, Serializable key) throws CallbackException {
+		touchOwner(collection);
+		_delegate.onCollectionUpdate(collection, key);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void preFlush(Iterator entities) throws CallbackException {
+		_delegate.preFlush(entities);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void postFlush(Iterator entities) throws CallbackException {
+		_delegate.postFlush(entities);
+	}
+
+	@Override
+	public Boolean isTransient(Object entity) {
+		return _delegate.isTransient(entity);
+	}
+
+	@Override
+	public int[] findDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState, String[] propertyNames, Type[] types) {
+		return _delegate.findDirty(entity, id, currentState, previousState, propertyNames, types);
+	}
+
+	@Override
+	public Object instantiate(String entityName, EntityMode entityMode, Serializable id) throws CallbackException {
+		return _delegate.instantiate(entityName, entityMode, id);
+	}
+
+	@Override
+	public String getEntityName(Object object) throws CallbackException {
+		return _delegate.getEntityName(object);
+	}
+
+	@Override
+	public Object getEntity(String entityName, Serializable id) throws CallbackException {
+		return _delegate.getEntity(entityName, id);
+	}
+
+	@Override
+	public void afterTransactionBegin(Transaction tx) {
+		_delegate.afterTransactionBegin(tx);
+	}
+
+	@Override
+	public void beforeTransactionCompletion(Transaction tx) {
+		_delegate.beforeTransactionCompletion(tx);
+	}
+
+	@Override
+	public void afterTransactionCompletion(Transaction tx) {
+		_delegate.afterTransactionCompletion(tx);
+	}
+
+	@Override
+	public String onPrepareStatement(String sql) {
+		return _delegate.onPrepareStatement(sql);
+	}
+
+	/**
+	 * コレクションの所有者のクラスを記録する
+	 * 
+	 * @param collection
+	 */
+	void touchOwner(Object collection) {
+		Object owner = ((PersistentCollection) collection).getOwner();
+		if (owner != null) {
+			_touched.add(Hibernate.getClass(owner));
+		}
+	}
+}
@@ -1,10 +1,43 @@
 package info.kinumi.rakuraku.hibernate;
 
 import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
+import org.hibernate.EntityMode;
+import org.hibernate.FlushMode;
+import org.hibernate.Hibernate;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
+import org.hibernate.TransactionException;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.engine.Status;
+import org.hibernate.event.EventSource;
+import org.hibernate.jdbc.Work;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.util.IdentityMap;
+
+import com.google.common.base.Throwables;
 
 /**
  * try-with-resourcesを使ったトランザクション
@@ -13,24 +46,110 @@ import org.hibernate.Transaction;
  * 
  * tryブロック中でcommit()がコールされなかった場合はロールバックします
  * 
+ * セッションとトランザクションは最初のデータベース操作で開始します
+ * 
+ * 読み取り専用のトランザクションは Tx.readOnly(sf) で開始します
+ * 
+ * Tx.required(sf) / Tx.nested(sf) は同じスレッドで Tx.required(sf) / Tx.nested(sf) / Tx.run(sf, ...) が
+ * 開始した最も内側の Tx のセッションに参加し、外側の commit() でのみコミットします
+ * (new Tx(sf) と Tx.readOnly(sf) はスレッドに登録しないので参加されません)
+ * 
  * @author kunimi.ikeda
  */
 public class Tx implements AutoCloseable {
 	@Override
 	public void close() {
-		if (_tx.isActive()) {
-			_tx.rollback();
+		if (_outer != null) {
+			closeInner();
+			return;
+		}
+		_completed = true;
+		unbind();
+		if (_session == null || !_session.isOpen()) {
+			return;
+		}
+		try {
+			if (_tx.isActive()) {
+				if (_readOnly) {
+					endReadOnly(false);
+				}
+				_tx.rollback();
+			}
+		}
+		finally {
+			_session.close();
 		}
 	}
 
 	/**
-	 * Hibernateセッション
+	 * 一括保存の既定のバッチサイズ (hibernate.jdbc.batch_size が未設定の場合)
+	 */
+	static final int DEFAULT_BATCH_SIZE = 50;
+
+	/**
+	 * get(Class, Collection) で1回のクエリに含める識別子の数
+	 */
+	static final int GET_CHUNK_SIZE = 500;
+
+	/**
+	 * QueryStats に記録するコミットの名前
+	 */
+	static final String COMMIT = "(commit)";
+
+	/**
+	 * スレッドに登録された Tx (先頭が最も内側)
+	 */
+	private static final ThreadLocal<Deque<Tx>> CURRENT = new ThreadLocal<Deque<Tx>>() {
+		@Override
+		protected Deque<Tx> initialValue() {
+			return new ArrayDeque<>();
+		}
+	};
+
+	/**
+	 * Hibernateセッションファクトリ
+	 */
+	private SessionFactory _sf;
+	/**
+	 * Hibernateセッション (最初のデータベース操作で開く)
 	 */
 	private Session _session;
 	/**
 	 * Hibernateトランザクション
 	 */
 	private Transaction _tx;
+	/**
+	 * 読み取り専用か
+	 */
+	private boolean _readOnly;
+	/**
+	 * commit() / close() 済みか
+	 */
+	private boolean _completed;
+	/**
+	 * 変更したエンティティクラス (コミット後に ResultCache から破棄する, ダーティチェックによる flush も含む)
+	 */
+	private Set<Class<?>> _touched = new HashSet<>();
+	/**
+	 * 参加している外側の Tx (最も外側の場合は null)
+	 */
+	private Tx _outer;
+	/**
+	 * セーブポイントを使うか
+	 */
+	private boolean _nested;
+	/**
+	 * 内側の Tx のセーブポイント
+	 */
+	private Savepoint _savepoint;
+	/**
+	 * セーブポイントを設定したときのエンティティ => ロード時の状態
+	 */
+	private Map<Object, Object[]> _savepointEntities;
+	/**
+	 * 内側の Tx がコミットせずに終了したか
+	 */
+	private boolean _rollbackOnly;
 
 	/**
 	 * コンストラクタ
@@ -38,8 +157,257 @@ public class Tx implements AutoCloseable {
 	 * @param sf
 	 */
 	public Tx(SessionFactory sf) {
-		_session = sf.openSession();
-		_tx = _session.beginTransaction();
+		this(sf, false);
+	}
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param sf
+	 * @param readOnly
+	 */
+	private Tx(SessionFactory sf, boolean readOnly) {
+		_sf = sf;
+		_readOnly = readOnly;
+	}
+
+	/**
+	 * コンストラクタ (外側の Tx に参加する)
+	 * 
+	 * @param outer
+	 * @param nested
+	 */
+	private Tx(Tx outer, boolean nested) {
+		_sf = outer._sf;
+		_readOnly = outer._readOnly;
+		_touched = outer._touched;
+		_outer = outer;
+		_nested = nested;
+	}
+
+	/**
+	 * Joins the innermost transaction begun on this thread by required(),
+	 * nested() or run(), or begins a new one bound to this thread.
+	 * 
+	 * Transactions created with new Tx(sf) or readOnly(sf) are not bound and
+	 * are never joined.
+	 * 
+	 * The joined Tx shares the session (and its first-level cache) of the
+	 * outer one. Its commit() does not commit; only the outer commit()
+	 * does. If it is closed without commit(), the outer transaction is marked
+	 * rollback-only and the outer commit() rolls back and throws
+	 * TransactionException.
+	 * 
+	 * exsample. <code>
+	 * try (Tx tx = Tx.required(sf)) {
+	 *   tx.save(cat);
+	 *   tx.commit();
+	 * }
+	 * </code>
+	 * 
+	 * @param sf
+	 * @return
+	 */
+	public static Tx required(SessionFactory sf) {
+		Tx outer = current(sf);
+		return outer != null ? new Tx(outer, false) : new Tx(sf).bind();
+	}
+
+	/**
+	 * Joins the innermost bound transaction of this thread with a savepoint,
+	 * or begins a new one bound to this thread.
+	 * 
+	 * Pending changes are flushed and a JDBC savepoint is set on the first
+	 * database operation. If it is closed without commit(), the work since
+	 * the savepoint is rolled back and the outer transaction can still
+	 * commit. The session is brought back to the savepoint as far as
+	 * possible: unflushed changes are discarded, entities loaded or saved
+	 * since the savepoint are evicted, and entities of the outer transaction
+	 * changed since the savepoint are refreshed from the database.
+	 * 
+	 * IMPORTANT: entities of the outer transaction that were deleted since
+	 * the savepoint are evicted (detached) and must be reloaded, and
+	 * collection changes are not restored.
+	 * 
+	 * @param sf
+	 * @return
+	 * @see #required(SessionFactory)
+	 */
+	public static Tx nested(SessionFactory sf) {
+		Tx outer = current(sf);
+		return outer != null ? new Tx(outer, true) : new Tx(sf).bind();
+	}
+
+	/**
+	 * Gets the innermost bound transaction of this thread.
+	 * 
+	 * @param sf
+	 * @return null if none
+	 */
+	private static Tx current(SessionFactory sf) {
+		for (Tx tx : CURRENT.get()) {
+			if (tx._sf == sf) {
+				return tx;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Runs the callback in a new transaction and commits, retrying on
+	 * contention with the default {@link RetryPolicy}.
+	 * 
+	 * exsample. <code>
+	 * Integer stock = Tx.run(sf, new TxCallback&lt;Integer&gt;() {
+	 *   public Integer call(Tx tx) {
+	 *     Item item = tx.from(Item.class).where("id = :id").param("id", 1).uniq();
+	 *     item.stock--;
+	 *     return item.stock;
+	 *   }
+	 * });
+	 * </code>
+	 * 
+	 * @param sf
+	 * @param callback
+	 * @return result of the callback
+	 * @see #run(SessionFactory, RetryPolicy, TxCallback)
+	 */
+	public static <V> V run(SessionFactory sf, TxCallback<V> callback) {
+		return run(sf, RetryPolicy.DEFAULT, callback);
+	}
+
+	/**
+	 * Runs the callback in a new transaction and commits, retrying on
+	 * contention.
+	 * 
+	 * When the callback or the commit throws a retriable exception (deadlock,
+	 * lock timeout, stale object state), the transaction is rolled back and
+	 * the callback runs again in a fresh transaction after a jittered
+	 * exponential backoff, until the policy's attempts or time budget are
+	 * used up. The callback must not keep state between attempts. Retries are
+	 * counted in QueryStats. Checked exceptions are wrapped in
+	 * RuntimeException.
+	 * 
+	 * Each attempt is a new transaction bound to this thread, so required()
+	 * and nested() inside the callback join the attempt (and are rolled back
+	 * and retried with it), even when an outer transaction is bound.
+	 * 
+	 * @param sf
+	 * @param policy
+	 * @param callback
+	 * @return result of the callback
+	 */
+	public static <V> V run(SessionFactory sf, RetryPolicy policy, TxCallback<V> callback) {
+		long start = System.nanoTime();
+		for (int attempt = 1;; attempt++) {
+			try (Tx tx = new Tx(sf).bind()) {
+				V result = callback.call(tx);
+				tx.commit();
+				return result;
+			}
+			catch (Exception e) {
+				if (!policy.isRetriable(e)) {
+					throw Throwables.propagate(e);
+				}
+				long backoff = policy.backoffMillis(attempt, ThreadLocalRandom.current());
+				long elapsed = (System.nanoTime() - start) / 1000000;
+				if (attempt >= policy._maxAttempts || elapsed + backoff > policy._budgetMillis) {
+					QueryStats.getInstance().recordRetryExhausted(e);
+					throw Throwables.propagate(e);
+				}
+				QueryStats.getInstance().recordRetry(e);
+				try {
+					Thread.sleep(backoff);
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw Throwables.propagate(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the session, opening it and beginning the transaction on the first
+	 * database operation so that no pooled connection is held before then.
+	 * 
+	 * @return
+	 */
+	Session session() {
+		if (_outer != null) {
+			if (_completed) {
+				throw new IllegalStateException("transaction already completed");
+			}
+			Session session = _outer.session();
+			if (_nested && _savepoint == null) {
+				if (!_readOnly) {
+					session.flush();
+				}
+				_savepoint = savepoint(session);
+				_savepointEntities = snapshot(session);
+			}
+			return session;
+		}
+		if (_session == null) {
+			if (_completed) {
+				throw new IllegalStateException("transaction already completed");
+			}
+			SessionFactoryImplementor factory = (SessionFactoryImplementor) _sf;
+			_session = _sf.openSession(new TouchedInterceptor(factory.getInterceptor(), _touched));
+			try {
+				if (_readOnly) {
+					_session.setFlushMode(FlushMode.MANUAL);
+					_session.setDefaultReadOnly(true);
+					setConnectionReadOnly(true);
+				}
+				_tx = _session.beginTransaction();
+			}
+			catch (RuntimeException e) {
+				_session.close();
+				_session = null;
+				throw e;
+			}
+		}
+		return _session;
+	}
+
+	/**
+	 * Whether the session and transaction have been started.
+	 * 
+	 * @return
+	 */
+	public boolean isStarted() {
+		return _outer != null ? _outer.isStarted() : _session != null;
+	}
+
+	/**
+	 * Begins read-only transaction.
+	 * 
+	 * The session never flushes, loaded entities and queries are read-only
+	 * (no snapshots, no dirty checking at commit) and the JDBC connection is
+	 * marked read-only. save, update, delete and the fluent updater/deleter
+	 * throw IllegalStateException.
+	 * 
+	 * exsample. <code>
+	 * try (Tx tx = Tx.readOnly(sf)) {
+	 *   List&lt;Cat&gt; cats = tx.from(Cat.class).list();
+	 * }
+	 * </code>
+	 * 
+	 * @param sf
+	 * @return
+	 */
+	public static Tx readOnly(SessionFactory sf) {
+		return new Tx(sf, true);
+	}
+
+	/**
+	 * Whether this transaction is read-only.
+	 * 
+	 * @return
+	 */
+	public boolean isReadOnly() {
+		return _readOnly;
 	}
 
 	/**
@@ -62,7 +430,116 @@ public class Tx implements AutoCloseable {
 	 * @return
 	 */
 	public <T> RakuRakuFinder<T> from(Class<T> klass) {
-		return new RakuRakuFinder<T>(klass, _session);
+		RakuRakuFinder<T> finder = new RakuRakuFinder<T>(klass, session());
+		finder._touched = _touched;
+		return finder;
+	}
+
+	/**
+	 * Begins fluent native SQL executor for an entity.
+	 * 
+	 * exsample. <code>
+	 * List&lt;Cat&gt; cats = tx.sql(Cat.class)
+	 *   .where("name = :name")
+	 *   .param("name", "Tama")
+	 *   .list();
+	 * -> [select * from cat where (name = :name)] mapped by addEntity(Cat.class)
+	 * </code>
+	 * 
+	 * @param klass
+	 * @return
+	 */
+	public <T> SQLExecutor<T> sql(Class<T> klass) {
+		return new SQLExecutor<T>(klass, session());
+	}
+
+	/**
+	 * Begins fluent native SQL executor mapped to an entity or a DTO.
+	 * 
+	 * DTO fields are set by column name, ignoring case and underscores.
+	 * 
+	 * exsample. <code>
+	 * List&lt;CatCount&gt; counts = tx.sql(CatCount.class, "select color, count(*) as cats from cat group by color")
+	 *   .list();
+	 * </code>
+	 * 
+	 * @param klass
+	 *            Entity or DTO with no-arg constructor
+	 * @param select
+	 *            select ... from ... without where and order by
+	 * @return
+	 */
+	public <T> SQLExecutor<T> sql(Class<T> klass, String select) {
+		return new SQLExecutor<T>(klass, select, session());
+	}
+
+	/**
+	 * Begins fluent native SQL executor returning Object[] rows.
+	 * 
+	 * @param select
+	 *            select ... from ... without where and order by
+	 * @return
+	 */
+	public SQLExecutor<Object[]> sql(String select) {
+		return new SQLExecutor<Object[]>(Object[].class, select, session());
+	}
+
+	/**
+	 * Gets many entities by identifier.
+	 * 
+	 * Entities already in this session are returned without a query. The
+	 * rest are loaded with [from Cat where id in (:ids)] in chunks of
+	 * {@value #GET_CHUNK_SIZE} identifiers. The map iterates in the order of
+	 * the requested identifiers; identifiers that do not exist (or are
+	 * deleted in this session) are absent.
+	 * 
+	 * exsample. <code>
+	 * Map&lt;Integer, Cat&gt; cats = tx.get(Cat.class, Arrays.asList(1, 2, 3));
+	 * </code>
+	 * 
+	 * @param klass
+	 * @param ids
+	 *            Identifiers of the mapped identifier type
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <T, ID extends Serializable> Map<ID, T> get(Class<T> klass, Collection<ID> ids) {
+		SessionFactoryImplementor factory = (SessionFactoryImplementor) _sf;
+		ClassMetadata metadata = Entities.getMetadata(_sf, klass);
+		EntityPersister persister = factory.getEntityPersister(metadata.getEntityName());
+		SessionImplementor session = (SessionImplementor) session();
+		PersistenceContext context = session.getPersistenceContext();
+		Map<ID, T> found = new HashMap<>();
+		List<ID> missing = new ArrayList<>();
+		for (ID id : ids) {
+			Object o = context.getEntity(new EntityKey(id, persister, EntityMode.POJO));
+			if (o == null) {
+				missing.add(id);
+				continue;
+			}
+			EntityEntry entry = context.getEntry(o);
+			if (entry == null || (entry.getStatus() != Status.DELETED && entry.getStatus() != Status.GONE)) {
+				found.put(id, (T) o);
+			}
+		}
+		if (!missing.isEmpty()) {
+			List<T> loaded = from(klass)
+				.where(metadata.getIdentifierPropertyName() + " in (:_ids)")
+				.param("_ids", missing)
+				.chunkSize(GET_CHUNK_SIZE)
+				.list();
+			for (T o : loaded) {
+				found.put((ID) Entities.getIdentifier(session, o), o);
+			}
+		}
+		Map<ID, T> result = new LinkedHashMap<>();
+		for (ID id : ids) {
+			T o = found.get(id);
+			if (o != null) {
+				result.put(id, o);
+			}
+		}
+		return result;
 	}
 
 	/**
@@ -81,7 +558,10 @@ public class Tx implements AutoCloseable {
 	 * @return
 	 */
 	public <T> RakuRakuDeleter<T> delete(Class<T> klass) {
-		return new RakuRakuDeleter<>(klass, _session);
+		checkWritable();
+		RakuRakuDeleter<T> deleter = new RakuRakuDeleter<>(klass, session());
+		deleter._touched = _touched;
+		return deleter;
 	}
 	
 	/**
@@ -102,7 +582,10 @@ public class Tx implements AutoCloseable {
 	 * @return
 	 */
 	public <T> RakuRakuUpdater<T> update(Class<T> klass) {
-		return new RakuRakuUpdater<>(klass, _session);
+		checkWritable();
+		RakuRakuUpdater<T> updater = new RakuRakuUpdater<>(klass, session());
+		updater._touched = _touched;
+		return updater;
 	}
 	
 	/**
@@ -113,7 +596,9 @@ public class Tx implements AutoCloseable {
 	 * @return
 	 */
 	public Serializable save(Object o) {
-		return _session.save(o);
+		checkWritable();
+		_touched.add(Hibernate.getClass(o));
+		return session().save(o);
 	}
 
 	/**
@@ -124,7 +609,9 @@ public class Tx implements AutoCloseable {
 	 * @return
 	 */
 	public Object merge(Object o) {
-		return _session.merge(o);
+		checkWritable();
+		_touched.add(Hibernate.getClass(o));
+		return session().merge(o);
 	}
 
 	/**
@@ -134,7 +621,9 @@ public class Tx implements AutoCloseable {
 	 *            Entity to update
 	 */
 	public void update(Object o) {
-		_session.update(o);
+		checkWritable();
+		_touched.add(Hibernate.getClass(o));
+		session().update(o);
 	}
 
 	/**
@@ -144,7 +633,9 @@ public class Tx implements AutoCloseable {
 	 *            Entity to delete
 	 */
 	public void delete(Object o) {
-		_session.delete(o);
+		checkWritable();
+		_touched.add(Hibernate.getClass(o));
+		session().delete(o);
 	}
 	
 	/**
@@ -154,28 +645,382 @@ public class Tx implements AutoCloseable {
 	 *            Entity to save or update.
 	 */
 	public void saveOrUpdate(Object o) {
-		_session.saveOrUpdate(o);
+		checkWritable();
+		_touched.add(Hibernate.getClass(o));
+		session().saveOrUpdate(o);
+	}
+
+	/**
+	 * save all.
+	 * 
+	 * Saves entities in chunks of hibernate.jdbc.batch_size (or
+	 * {@value #DEFAULT_BATCH_SIZE} when it is not set), then the session is
+	 * flushed and cleared. Entities are saved in the given order, so parents
+	 * can be passed before their children; set hibernate.order_inserts=true
+	 * to let Hibernate group the inserts by table for JDBC batching while
+	 * keeping foreign keys satisfied.
+	 * 
+	 * Entities already loaded in this session are detached by the clear.
+	 * 
+	 * @param entities
+	 *            Entities to save
+	 * @return count and rows per second
+	 */
+	public BulkResult saveAll(Iterable<?> entities) {
+		return saveAll(entities, getBatchSize());
+	}
+
+	/**
+	 * save all.
+	 * 
+	 * @param entities
+	 *            Entities to save
+	 * @param batchSize
+	 *            Number of entities to flush and clear at once
+	 * @return count and rows per second
+	 */
+	public BulkResult saveAll(Iterable<?> entities, int batchSize) {
+		return bulk(entities, batchSize, false);
+	}
+
+	/**
+	 * save or update all.
+	 * 
+	 * @param entities
+	 *            Entities to save or update
+	 * @return count and rows per second
+	 * @see #saveAll(Iterable)
+	 */
+	public BulkResult saveOrUpdateAll(Iterable<?> entities) {
+		return saveOrUpdateAll(entities, getBatchSize());
+	}
+
+	/**
+	 * save or update all.
+	 * 
+	 * @param entities
+	 *            Entities to save or update
+	 * @param batchSize
+	 *            Number of entities to flush and clear at once
+	 * @return count and rows per second
+	 */
+	public BulkResult saveOrUpdateAll(Iterable<?> entities, int batchSize) {
+		return bulk(entities, batchSize, true);
+	}
+
+	/**
+	 * Begins bulk loader from a delimited file.
+	 * 
+	 * Rows are saved and the session is flushed every
+	 * hibernate.jdbc.batch_size rows (or {@value #DEFAULT_BATCH_SIZE}); only
+	 * the entities the load brought into the session are evicted, so
+	 * entities already loaded in this session stay attached. Prefer
+	 * StatelessTx for large files.
+	 * 
+	 * exsample. <code>
+	 * BulkResult r = tx.load(Cat.class)
+	 *   .rejectTo(Paths.get("cats.rejected.csv"))
+	 *   .fromCsv(Paths.get("cats.csv"));
+	 * </code>
+	 * 
+	 * @param klass
+	 * @return
+	 */
+	public <T> RakuRakuLoader<T> load(Class<T> klass) {
+		checkWritable();
+		RakuRakuLoader<T> loader = new RakuRakuLoader<>(klass, session(), getBatchSize());
+		loader._touched = _touched;
+		return loader;
+	}
+
+	/**
+	 * Gets hibernate.jdbc.batch_size.
+	 * 
+	 * @return
+	 */
+	int getBatchSize() {
+		int batchSize = ((SessionFactoryImplementor) _sf).getSettings().getJdbcBatchSize();
+		return batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+	}
+
+	/**
+	 * Saves entities chunk by chunk.
+	 * 
+	 * @param entities
+	 * @param batchSize
+	 * @param saveOrUpdate
+	 * @return
+	 */
+	private BulkResult bulk(Iterable<?> entities, int batchSize, boolean saveOrUpdate) {
+		checkWritable();
+		long start = System.nanoTime();
+		long count = 0;
+		Session session = session();
+		for (Object o : entities) {
+			_touched.add(Hibernate.getClass(o));
+			if (saveOrUpdate) {
+				session.saveOrUpdate(o);
+			}
+			else {
+				session.save(o);
+			}
+			if (++count % batchSize == 0) {
+				session.flush();
+				session.clear();
+			}
+		}
+		if (count % batchSize != 0) {
+			session.flush();
+			session.clear();
+		}
+		return new BulkResult(count, System.nanoTime() - start);
 	}
 
 	
 	/**
 	 * Commits active transaction.
+	 * 
+	 * Does nothing if no database operation has started the transaction.
 	 */
 	public void commit() {
+		if (_completed) {
+			throw new IllegalStateException("transaction already completed");
+		}
+		_completed = true;
+		if (_outer != null) {
+			if (_savepoint != null) {
+				releaseSavepoint(_outer.session(), _savepoint);
+			}
+			return;
+		}
+		unbind();
+		if (_session == null) {
+			return;
+		}
+		if (_rollbackOnly) {
+			close();
+			throw new TransactionException("inner transaction did not commit, rolled back");
+		}
 		try {
+			long start = System.nanoTime();
+			if (_readOnly) {
+				endReadOnly(true);
+			}
 			_tx.commit();
+			QueryStats.getInstance().record(COMMIT, System.nanoTime() - start, 0, Collections.<String> emptySet());
+			ResultCache.invalidate(_touched);
 		}
 		finally {
 			_session.close();
 		}
 	}
 
+	/**
+	 * Ends the joined transaction without commit.
+	 */
+	private void closeInner() {
+		if (_completed) {
+			return;
+		}
+		_completed = true;
+		if (_outer._completed) {
+			return;
+		}
+		if (!_nested) {
+			_outer._rollbackOnly = true;
+		}
+		else if (_savepoint != null) {
+			Session session = _outer.session();
+			rollbackToSavepoint(session, _savepoint);
+			restore(session, _savepointEntities);
+		}
+	}
+
+	/**
+	 * Binds this transaction to the thread as the innermost one.
+	 * 
+	 * @return
+	 */
+	Tx bind() {
+		CURRENT.get().push(this);
+		return this;
+	}
+
+	/**
+	 * Removes this transaction from the thread.
+	 */
+	private void unbind() {
+		Deque<Tx> current = CURRENT.get();
+		current.remove(this);
+		if (current.isEmpty()) {
+			CURRENT.remove();
+		}
+	}
+
+	/**
+	 * Takes the loaded state of the entities in the session.
+	 * 
+	 * @param session
+	 * @return
+	 */
+	private static Map<Object, Object[]> snapshot(Session session) {
+		Map<Object, Object[]> entities = new IdentityHashMap<>();
+		for (Map.Entry<?, ?> e : IdentityMap.concurrentEntries(((SessionImplementor) session).getPersistenceContext().getEntityEntries())) {
+			entities.put(e.getKey(), ((EntityEntry) e.getValue()).getLoadedState());
+		}
+		return entities;
+	}
+
+	/**
+	 * Brings the session back to a snapshot after rolling back to a
+	 * savepoint.
+	 * 
+	 * @param session
+	 * @param snapshot
+	 */
+	private static void restore(Session session, Map<Object, Object[]> snapshot) {
+		EventSource si = (EventSource) session;
+		si.getActionQueue().clear();
+		List<Object> evict = new ArrayList<>();
+		List<Object> refresh = new ArrayList<>();
+		for (Map.Entry<?, ?> e : IdentityMap.concurrentEntries(si.getPersistenceContext().getEntityEntries())) {
+			Object entity = e.getKey();
+			EntityEntry entry = (EntityEntry) e.getValue();
+			if (!snapshot.containsKey(entity) || entry.getStatus() != Status.MANAGED) {
+				evict.add(entity);
+			}
+			else if (entry.getLoadedState() != snapshot.get(entity) || isDirty(si, entity, entry)) {
+				refresh.add(entity);
+			}
+		}
+		for (Object entity : evict) {
+			session.evict(entity);
+		}
+		for (Object entity : refresh) {
+			session.refresh(entity);
+		}
+	}
+
+	/**
+	 * Whether the entity has unflushed changes.
+	 * 
+	 * @param session
+	 * @param entity
+	 * @param entry
+	 * @return
+	 */
+	private static boolean isDirty(SessionImplementor session, Object entity, EntityEntry entry) {
+		if (entry.getLoadedState() == null) {
+			return false;
+		}
+		EntityPersister persister = entry.getPersister();
+		return persister.findDirty(persister.getPropertyValues(entity, EntityMode.POJO), entry.getLoadedState(), entity, session) != null;
+	}
+
+	/**
+	 * Sets a JDBC savepoint.
+	 * 
+	 * @param session
+	 * @return
+	 */
+	private static Savepoint savepoint(Session session) {
+		final Savepoint[] savepoint = new Savepoint[1];
+		session.doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				savepoint[0] = connection.setSavepoint();
+			}
+		});
+		return savepoint[0];
+	}
+
+	/**
+	 * Rolls back to a JDBC savepoint.
+	 * 
+	 * @param session
+	 * @param savepoint
+	 */
+	private static void rollbackToSavepoint(Session session, final Savepoint savepoint) {
+		session.doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				connection.rollback(savepoint);
+			}
+		});
+	}
+
+	/**
+	 * Releases a JDBC savepoint.
+	 * 
+	 * @param session
+	 * @param savepoint
+	 */
+	private static void releaseSavepoint(Session session, final Savepoint savepoint) {
+		session.doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				connection.releaseSavepoint(savepoint);
+			}
+		});
+	}
+
+	/**
+	 * Throws if this transaction is read-only.
+	 */
+	private void checkWritable() {
+		if (_readOnly) {
+			throw new IllegalStateException("read-only transaction");
+		}
+	}
+
+	/**
+	 * Sets read-only flag of the JDBC connection.
+	 * 
+	 * @param readOnly
+	 */
+	private void setConnectionReadOnly(final boolean readOnly) {
+		_session.doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				connection.setReadOnly(readOnly);
+			}
+		});
+	}
+
+	/**
+	 * Ends the read-only JDBC transaction and clears the read-only flag.
+	 * 
+	 * Hibernate returns the connection to the pool as soon as its own
+	 * commit/rollback completes, so the flag is cleared before that on the
+	 * same connection. The JDBC transaction is ended first because some
+	 * drivers refuse to change the flag in the middle of a transaction;
+	 * Hibernate's commit/rollback that follows has nothing left to do.
+	 * 
+	 * @param commit
+	 */
+	private void endReadOnly(final boolean commit) {
+		_session.doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				if (commit) {
+					connection.commit();
+				}
+				else {
+					connection.rollback();
+				}
+				connection.setReadOnly(false);
+			}
+		});
+	}
+
 	/**
 	 * Gets the hibernate's session
 	 * 
+	 * Opens the session and begins the transaction if not yet started.
+	 * 
 	 * @return Session
 	 */
 	public Session getSession() {
-		return _session;
+		return session();
 	}
 }
@@ -0,0 +1,28 @@
+package info.kinumi.rakuraku.hibernate;
+
+/**
+ * トランザクション内で実行する処理
+ * 
+ * <code>
+ * new TxCallback<List<A>>() {
+ *     public List<A> call(Tx tx) {
+ *         return tx.from(A.class).list();
+ *     }
+ * };
+ * </code>
+ * 
+ * @param <V>
+ *            結果の型
+ * @author kunimi.ikeda
+ */
+public interface TxCallback<V> {
+
+	/**
+	 * トランザクション内で実行する
+	 * 
+	 * @param tx
+	 * @return
+	 * @throws Exception
+	 */
+	V call(Tx tx) throws Exception;
+}
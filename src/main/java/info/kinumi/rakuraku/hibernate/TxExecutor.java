@@ -0,0 +1,171 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Environment;
+import org.hibernate.engine.SessionFactoryImplementor;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * 非同期にトランザクションを実行するエグゼキュータ
+ * 
+ * 処理ごとに短いトランザクションを別スレッドで実行するので、独立した複数の読み込みを並行に実行できます。
+ * スレッド数はコネクションプールのサイズに合わせてください。
+ * 待ち行列の長さには上限があり、あふれた処理は RejectedExecutionException で拒否します。
+ * 
+ * <code>
+ * TxExecutor executor = new TxExecutor(sf);
+ * ListenableFuture<List<A>> as = executor.read(new TxCallback<List<A>>() {
+ *     public List<A> call(Tx tx) {
+ *         return tx.from(A.class).list();
+ *     }
+ * });
+ * ListenableFuture<Long> count = executor.read(...);
+ * Futures.allAsList(as, count).get();
+ * </code>
+ * 
+ * @author kunimi.ikeda
+ */
+public class TxExecutor implements AutoCloseable {
+
+	/**
+	 * hibernate.connection.pool_size が未設定の場合のスレッド数
+	 */
+	static final int DEFAULT_THREADS = 10;
+
+	/**
+	 * 待ち行列の既定の長さ
+	 */
+	static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	/**
+	 * Hibernateセッションファクトリ
+	 */
+	SessionFactory _sf;
+
+	/**
+	 * スレッドプール
+	 */
+	ListeningExecutorService _executor;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * スレッド数は hibernate.connection.pool_size (未設定なら {@value #DEFAULT_THREADS}) 、
+	 * 待ち行列の長さは {@value #DEFAULT_QUEUE_SIZE} です。
+	 * 
+	 * @param sf
+	 */
+	public TxExecutor(SessionFactory sf) {
+		this(sf, getPoolSize(sf));
+	}
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param sf
+	 * @param threads
+	 *            スレッド数
+	 */
+	public TxExecutor(SessionFactory sf, int threads) {
+		this(sf, threads, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param sf
+	 * @param threads
+	 *            スレッド数
+	 * @param queueSize
+	 *            実行を待つ処理の最大数
+	 */
+	public TxExecutor(SessionFactory sf, int threads, int queueSize) {
+		_sf = sf;
+		_executor = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(threads, threads,
+			0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(queueSize),
+			new ThreadFactoryBuilder().setNameFormat("rakuraku-tx-%d").setDaemon(true).build()));
+	}
+
+	/**
+	 * トランザクションで実行する
+	 * 
+	 * callback が正常に終了したらコミットし、例外ならロールバックします。
+	 * トランザクションはスレッドに登録するので、callback 内の Tx.required(sf) は参加します。
+	 * 
+	 * @param callback
+	 * @return
+	 * @throws RejectedExecutionException
+	 *             待ち行列があふれた場合
+	 */
+	public <V> ListenableFuture<V> submit(final TxCallback<V> callback) {
+		return _executor.submit(new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				try (Tx tx = Tx.required(_sf)) {
+					V result = callback.call(tx);
+					tx.commit();
+					return result;
+				}
+			}
+		});
+	}
+
+	/**
+	 * 読み取り専用のトランザクションで実行する
+	 * 
+	 * トランザクションはスレッドに登録するので、callback 内の Tx.required(sf) は参加します。
+	 * 
+	 * @param callback
+	 * @return
+	 * @throws RejectedExecutionException
+	 *             待ち行列があふれた場合
+	 * @see Tx#readOnly(SessionFactory)
+	 */
+	public <V> ListenableFuture<V> read(final TxCallback<V> callback) {
+		return _executor.submit(new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				try (Tx tx = Tx.readOnly(_sf).bind()) {
+					V result = callback.call(tx);
+					tx.commit();
+					return result;
+				}
+			}
+		});
+	}
+
+	/**
+	 * 実行中の処理の終了を待ってスレッドプールを停止する
+	 */
+	@Override
+	public void close() {
+		_executor.shutdown();
+		try {
+			_executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * hibernate.connection.pool_size を取得する
+	 * 
+	 * @param sf
+	 * @return
+	 */
+	static int getPoolSize(SessionFactory sf) {
+		String poolSize = ((SessionFactoryImplementor) sf).getProperties().getProperty(Environment.POOL_SIZE);
+		return poolSize != null ? Integer.parseInt(poolSize.trim()) : DEFAULT_THREADS;
+	}
+}
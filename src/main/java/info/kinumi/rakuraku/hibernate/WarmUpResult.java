@@ -0,0 +1,100 @@
+package info.kinumi.rakuraku.hibernate;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.HibernateException;
+
+/**
+ * QueryRegistry.warmUp() の結果
+ * 
+ * @author kunimi.ikeda
+ */
+public class WarmUpResult {
+
+	/**
+	 * コンパイルできたクエリ数
+	 */
+	final int _compiled;
+
+	/**
+	 * HQL => コンパイルできなかった理由
+	 */
+	final Map<String, Exception> _failures;
+
+	/**
+	 * 処理時間 (ナノ秒)
+	 */
+	final long _elapsedNanos;
+
+	/**
+	 * コンストラクタ
+	 * 
+	 * @param compiled
+	 * @param failures
+	 * @param elapsedNanos
+	 */
+	WarmUpResult(int compiled, Map<String, Exception> failures, long elapsedNanos) {
+		_compiled = compiled;
+		_failures = Collections.unmodifiableMap(failures);
+		_elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * コンパイルできたクエリ数
+	 * 
+	 * @return
+	 */
+	public int getCompiled() {
+		return _compiled;
+	}
+
+	/**
+	 * コンパイルできなかったクエリ (HQL => 例外)
+	 * 
+	 * @return
+	 */
+	public Map<String, Exception> getFailures() {
+		return _failures;
+	}
+
+	/**
+	 * すべてコンパイルできたか
+	 * 
+	 * @return
+	 */
+	public boolean isSuccess() {
+		return _failures.isEmpty();
+	}
+
+	/**
+	 * 処理時間 (ミリ秒)
+	 * 
+	 * @return
+	 */
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(_elapsedNanos);
+	}
+
+	/**
+	 * コンパイルできなかったクエリがあれば例外を投げる
+	 * 
+	 * @throws HibernateException
+	 */
+	public void throwIfFailed() {
+		if (!isSuccess()) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(_failures.size()).append(" invalid queries:");
+			for (Map.Entry<String, Exception> e : _failures.entrySet()) {
+				sb.append("\n  ").append(e.getKey()).append(" => ").append(e.getValue().getMessage());
+			}
+			throw new HibernateException(sb.toString());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d queries compiled, %d failed in %d ms", _compiled, _failures.size(), getElapsedMillis());
+	}
+}
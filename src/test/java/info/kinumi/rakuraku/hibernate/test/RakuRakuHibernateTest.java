@@ -2,20 +2,79 @@ package info.kinumi.rakuraku.hibernate.test;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import info.kinumi.rakuraku.hibernate.BulkResult;
+import info.kinumi.rakuraku.hibernate.ColumnarResult;
+import info.kinumi.rakuraku.hibernate.ExportFormat;
+import info.kinumi.rakuraku.hibernate.KeysetPage;
+import info.kinumi.rakuraku.hibernate.LoadListener;
+import info.kinumi.rakuraku.hibernate.PartitionResult;
+import info.kinumi.rakuraku.hibernate.RakuRakuDeleter;
+import info.kinumi.rakuraku.hibernate.QueryRegistry;
+import info.kinumi.rakuraku.hibernate.QueryStats;
+import info.kinumi.rakuraku.hibernate.RakuRakuCursor;
+import info.kinumi.rakuraku.hibernate.RakuRakuQuery;
+import info.kinumi.rakuraku.hibernate.RakuRakuUpdater;
+import info.kinumi.rakuraku.hibernate.ResultCache;
+import info.kinumi.rakuraku.hibernate.RetryPolicy;
+import info.kinumi.rakuraku.hibernate.RowHandler;
+import info.kinumi.rakuraku.hibernate.StatelessTx;
 import info.kinumi.rakuraku.hibernate.Tx;
+import info.kinumi.rakuraku.hibernate.TxCallback;
+import info.kinumi.rakuraku.hibernate.TxExecutor;
+import info.kinumi.rakuraku.hibernate.WarmUpResult;
 import info.kinumi.rakuraku.hibernate.test.entity.DBTest;
+import info.kinumi.rakuraku.hibernate.test.entity.DBTestDto;
+import info.kinumi.rakuraku.hibernate.test.entity.DBTestGenerated;
+import info.kinumi.rakuraku.hibernate.test.entity.DBTestNode;
 
+import javax.management.ObjectName;
+
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
+import org.hibernate.QueryException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.TransactionException;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.query.QueryPlanCache;
+import org.hibernate.stat.Statistics;
+import org.hibernate.util.SoftLimitMRUCache;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 public class RakuRakuHibernateTest {
 
+	static final RakuRakuQuery<DBTest> FIND_BY_C = RakuRakuQuery.from(DBTest.class)
+		.where("c = :c")
+		.orderBy("id desc");
+
 	SessionFactory _sf;
 
 	@Before
@@ -27,6 +86,10 @@ public class RakuRakuHibernateTest {
 			Session s = _sf.openSession();
 			s.createSQLQuery(" drop table test if exists; ").executeUpdate();
 			s.createSQLQuery(" create table test (id int, a varchar(255), b varchar(255), c varchar(255)); ").executeUpdate();
+			s.createSQLQuery(" drop table test_node if exists; ").executeUpdate();
+			s.createSQLQuery(" create table test_node (id int, name varchar(255), parent_id int, test_id int); ").executeUpdate();
+			s.createSQLQuery(" drop table test_generated if exists; ").executeUpdate();
+			s.createSQLQuery(" create table test_generated (id int auto_increment primary key, name varchar(255)); ").executeUpdate();
 			s.close();
 		}
 		try (Tx tx = new Tx(_sf)) {
@@ -40,6 +103,11 @@ public class RakuRakuHibernateTest {
 			s.createSQLQuery(" insert into test values (7, 'ghi', '789', '1'); ").executeUpdate();
 			s.createSQLQuery(" insert into test values (8, 'hij', '890', '0'); ").executeUpdate();
 			s.createSQLQuery(" insert into test values (9, 'ijk', '901', '1'); ").executeUpdate();
+			s.createSQLQuery(" insert into test_node values (1, 'root1', null, 1); ").executeUpdate();
+			s.createSQLQuery(" insert into test_node values (2, 'root2', null, 2); ").executeUpdate();
+			s.createSQLQuery(" insert into test_node values (3, 'leaf1', 1, 3); ").executeUpdate();
+			s.createSQLQuery(" insert into test_node values (4, 'leaf2', 1, 4); ").executeUpdate();
+			s.createSQLQuery(" insert into test_node values (5, 'leaf3', 2, 5); ").executeUpdate();
 			tx.commit();
 		}
 	}
@@ -48,6 +116,8 @@ public class RakuRakuHibernateTest {
 	public void tearDown() throws Exception {
 		Session s = _sf.openSession();
 		s.createSQLQuery(" drop table test if exists; ").executeUpdate();
+		s.createSQLQuery(" drop table test_node if exists; ").executeUpdate();
+		s.createSQLQuery(" drop table test_generated if exists; ").executeUpdate();
 		s.close();
 	}
 
@@ -76,6 +146,188 @@ public class RakuRakuHibernateTest {
 		}
 	}
 
+	@Test
+	public void test_トランザクション_saveAll() {
+		try (Tx tx = new Tx(_sf)) {
+			List<DBTest> list = new ArrayList<>();
+			for (int i = 100; i < 120; i++) {
+				list.add(new DBTest(i, "bulk", "bulk", "bulk"));
+			}
+			BulkResult r = tx.saveAll(list, 7);
+			assertEquals(20, r.getCount());
+			tx.commit();
+		}
+		try (Tx tx = new Tx(_sf)) {
+			List<DBTest> list = tx.from(DBTest.class).where("a = 'bulk'").list();
+			assertEquals(20, list.size());
+			for (DBTest o : list) {
+				o.b = "updated";
+			}
+			BulkResult r = tx.saveOrUpdateAll(list);
+			assertEquals(20, r.getCount());
+			tx.commit();
+		}
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals(20, tx.from(DBTest.class).where("b = 'updated'").list().size());
+		}
+	}
+
+	@Test
+	public void test_トランザクション_saveAll_順序() {
+		try (Tx tx = new Tx(_sf)) {
+			List<Object> list = new ArrayList<>();
+			for (int i = 200; i < 205; i++) {
+				DBTest test = new DBTest(i, "mixed", "mixed", "mixed");
+				DBTestNode node = new DBTestNode();
+				node.id = i;
+				node.name = "mixed";
+				node.test = test;
+				list.add(test);
+				list.add(node);
+			}
+			BulkResult r = tx.saveAll(list, 3);
+			assertEquals(10, r.getCount());
+			tx.commit();
+		}
+		try (Tx tx = new Tx(_sf)) {
+			List<DBTestNode> nodes = tx.from(DBTestNode.class).where("name = 'mixed'").orderBy("id").list();
+			assertEquals(5, nodes.size());
+			for (DBTestNode node : nodes) {
+				assertEquals(node.id, node.test.id);
+			}
+		}
+	}
+
+	@Test
+	public void test_トランザクション_readOnly() {
+		try (Tx tx = Tx.readOnly(_sf)) {
+			assertTrue(tx.isReadOnly());
+			DBTest o = tx.from(DBTest.class).where("id = 1").uniq();
+			assertTrue(tx.getSession().isReadOnly(o));
+			o.a = "changed";
+			try {
+				tx.save(new DBTest(999, "test", "test", "test"));
+				fail();
+			}
+			catch (IllegalStateException e) {
+				// ok
+			}
+			try {
+				tx.update(DBTest.class);
+				fail();
+			}
+			catch (IllegalStateException e) {
+				// ok
+			}
+			tx.commit();
+		}
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals("abc", tx.from(DBTest.class).where("id = 1").uniq().a);
+			assertNull(tx.from(DBTest.class).where("id = 999").uniq());
+		}
+	}
+
+	@Test
+	public void test_TxExecutor() throws Exception {
+		try (TxExecutor executor = new TxExecutor(_sf, 3)) {
+			ListenableFuture<Long> count = executor.read(new TxCallback<Long>() {
+				@Override
+				public Long call(Tx tx) {
+					return tx.from(DBTest.class).count();
+				}
+			});
+			ListenableFuture<DBTest> first = executor.read(new TxCallback<DBTest>() {
+				@Override
+				public DBTest call(Tx tx) {
+					return tx.from(DBTest.class).orderBy("id").uniq();
+				}
+			});
+			ListenableFuture<Integer> updated = executor.submit(new TxCallback<Integer>() {
+				@Override
+				public Integer call(Tx tx) {
+					return tx.update(DBTest.class).set("b = 'x'").where("id = 9").execute();
+				}
+			});
+			assertEquals(3, Futures.allAsList(Arrays.<ListenableFuture<?>>asList(count, first, updated)).get().size());
+			assertEquals(9L, (long) count.get());
+			assertEquals(1, first.get().id);
+			assertEquals(1, (int) updated.get());
+
+			ListenableFuture<Object> failed = executor.read(new TxCallback<Object>() {
+				@Override
+				public Object call(Tx tx) {
+					return tx.update(DBTest.class);
+				}
+			});
+			try {
+				failed.get();
+				fail();
+			}
+			catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+
+			TxCallback<Boolean> joins = new TxCallback<Boolean>() {
+				@Override
+				public Boolean call(Tx tx) {
+					try (Tx inner = Tx.required(_sf)) {
+						boolean joined = inner.getSession() == tx.getSession();
+						inner.commit();
+						return joined;
+					}
+				}
+			};
+			assertTrue(executor.submit(joins).get());
+			assertTrue(executor.read(joins).get());
+		}
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals("x", tx.from(DBTest.class).where("id = 9").uniq().b);
+		}
+		final CountDownLatch latch = new CountDownLatch(1);
+		TxCallback<Object> blocking = new TxCallback<Object>() {
+			@Override
+			public Object call(Tx tx) throws Exception {
+				latch.await();
+				return null;
+			}
+		};
+		try (TxExecutor executor = new TxExecutor(_sf, 1, 1)) {
+			executor.read(blocking);
+			executor.read(blocking);
+			try {
+				executor.read(blocking);
+				fail();
+			}
+			catch (RejectedExecutionException e) {
+				// ok
+			}
+			finally {
+				latch.countDown();
+			}
+		}
+	}
+
+	@Test
+	public void test_StatelessTx() {
+		try (StatelessTx tx = new StatelessTx(_sf)) {
+			tx.insert(new DBTest(999, "test", "test", "test"));
+			DBTest o = tx.from(DBTest.class).where("id = 999").uniq();
+			o.b = "updated";
+			tx.update(o);
+			assertEquals(5, tx.update(DBTest.class).set("c = :newC").where("c = :c").param("newC", "2").param("c", "1").execute());
+			assertEquals(4, tx.delete(DBTest.class).where("c = :c").param("c", "0").execute());
+			tx.commit();
+		}
+		try (StatelessTx tx = new StatelessTx(_sf)) {
+			assertEquals("updated", tx.get(DBTest.class, 999).b);
+			assertEquals(6, tx.from(DBTest.class).list().size());
+			tx.delete(tx.get(DBTest.class, 999));
+		}
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals(6, tx.from(DBTest.class).list().size());
+		}
+	}
+
 	@Test
 	public void test_Finder_list() {
 		// from DBTest
@@ -137,6 +389,214 @@ public class RakuRakuHibernateTest {
 		
 	}
 	
+	@Test
+	public void test_Finder_count() {
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals(9, tx.from(DBTest.class).count());
+			assertEquals(5, tx.from(DBTest.class).where("c = :c").orderBy("id desc").param("c", "1").limit(2).count());
+			assertTrue(tx.from(DBTest.class).where("a like :a").param("a", "%bc%").exists());
+			assertFalse(tx.from(DBTest.class).where("a = :a").param("a", "zzz").exists());
+		}
+	}
+
+	@Test
+	public void test_Finder_select() {
+		try (Tx tx = new Tx(_sf)) {
+			List<Object[]> rows = tx.from(DBTest.class)
+				.where("c = :c")
+				.orderBy("id desc")
+				.param("c", "1")
+				.select("id", "a")
+				.limit(2)
+				.list();
+			assertEquals(2, rows.size());
+			assertEquals(9, rows.get(0)[0]);
+			assertEquals("ijk", rows.get(0)[1]);
+
+			List<Object[]> single = tx.from(DBTest.class).orderBy("id").select("a").list();
+			assertEquals("abc", single.get(0)[0]);
+
+			List<Integer> ids = tx.from(DBTest.class).where("c = '0'").orderBy("id").select(Integer.class, "id").list();
+			assertEquals(4, ids.size());
+			assertEquals(2, (int) ids.get(0));
+			try {
+				tx.from(DBTest.class).select(Integer.class, "a");
+				fail();
+			}
+			catch (IllegalArgumentException e) {
+				// ok
+			}
+			List<Number> numbers = tx.from(DBTest.class).orderBy("id").select(Number.class, "id").list();
+			assertEquals(1, numbers.get(0).intValue());
+
+			DBTestDto dto = tx.from(DBTest.class).where("id = :id").selectNew(DBTestDto.class, "id", "a").param("id", 3).uniq();
+			assertEquals(3, dto.id);
+			assertEquals("cde", dto.a);
+
+			assertEquals(0, tx.getSession().getStatistics().getEntityCount());
+		}
+	}
+
+	@Test
+	public void test_Finder_partitionBy() {
+		final ConcurrentLinkedQueue<Integer> ids = new ConcurrentLinkedQueue<>();
+		List<PartitionResult> results;
+		try (Tx tx = new Tx(_sf)) {
+			results = tx.from(DBTest.class)
+				.where("c = :c")
+				.param("c", "1")
+				.partitionBy("id", 4)
+				.parallelForEach(new RowHandler<DBTest>() {
+					@Override
+					public void handle(DBTest row) {
+						if (row.id == 9) {
+							throw new IllegalStateException("boom");
+						}
+						ids.add(row.id);
+					}
+				});
+		}
+		// id 1 - 9 => [1, 3], [4, 6], [7, 9]
+		assertEquals(3, results.size());
+		assertEquals(1, results.get(0).getFrom());
+		assertEquals(9, results.get(2).getTo());
+		assertTrue(results.get(0).isSuccess());
+		assertEquals(2, results.get(0).getRows());
+		assertEquals(1, results.get(1).getRows());
+		assertFalse(results.get(2).isSuccess());
+		assertTrue(ids.containsAll(Arrays.asList(1, 3, 5)));
+		assertFalse(ids.contains(9));
+
+		// seek() is kept, limit/offset are rejected
+		ids.clear();
+		try (Tx tx = new Tx(_sf)) {
+			tx.from(DBTest.class)
+				.orderBy("id")
+				.seek(6)
+				.partitionBy("id", 2)
+				.parallelForEach(new RowHandler<DBTest>() {
+					@Override
+					public void handle(DBTest row) {
+						ids.add(row.id);
+					}
+				});
+			assertEquals(3, ids.size());
+			assertFalse(ids.contains(6));
+			try {
+				tx.from(DBTest.class).limit(3).partitionBy("id", 2);
+				fail();
+			}
+			catch (IllegalStateException e) {
+				// ok
+			}
+		}
+
+		// writable partitions commit their changes
+		try (Tx tx = new Tx(_sf)) {
+			results = tx.from(DBTest.class)
+				.partitionBy("id", 3)
+				.writable()
+				.parallelForEach(new RowHandler<DBTest>() {
+					@Override
+					public void handle(DBTest row) {
+						row.b = "scanned";
+					}
+				});
+		}
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals(9, tx.from(DBTest.class).where("b = 'scanned'").count());
+		}
+
+		// the key is qualified with the root alias when fetching
+		final ConcurrentLinkedQueue<Integer> nodes = new ConcurrentLinkedQueue<>();
+		try (Tx tx = new Tx(_sf)) {
+			results = tx.from(DBTestNode.class)
+				.fetch("test")
+				.where("test_.c = :c")
+				.param("c", "1")
+				.partitionBy("id", 2)
+				.parallelForEach(new RowHandler<DBTestNode>() {
+					@Override
+					public void handle(DBTestNode row) {
+						assertTrue(Hibernate.isInitialized(row.test));
+						nodes.add(row.id);
+					}
+				});
+			assertEquals(2, results.size());
+			for (PartitionResult result : results) {
+				assertNull(result.getFailure());
+			}
+			assertEquals(new HashSet<>(Arrays.asList(1, 3, 5)), new HashSet<>(nodes));
+		}
+
+		// errors are not swallowed
+		try (Tx tx = new Tx(_sf)) {
+			tx.from(DBTest.class)
+				.partitionBy("id", 2)
+				.parallelForEach(new RowHandler<DBTest>() {
+					@Override
+					public void handle(DBTest row) {
+						throw new AssertionError("fatal");
+					}
+				});
+			fail();
+		}
+		catch (AssertionError e) {
+			assertEquals("fatal", e.getMessage());
+		}
+	}
+
+	@Test
+	public void test_Finder_page() {
+		// from DBTest order by c, id desc
+		// => 8, 6, 4, 2, 9, 7, 5, 3, 1
+		try (Tx tx = new Tx(_sf)) {
+			KeysetPage<DBTest> page = tx.from(DBTest.class).orderBy("c", "id desc").limit(3).page();
+			assertEquals(3, page.getRows().size());
+			assertEquals(8, page.getRows().get(0).id);
+			assertEquals(4, page.getRows().get(2).id);
+			assertTrue(page.hasNext());
+
+			page = tx.from(DBTest.class).orderBy("c", "id desc").limit(3).seek(page.getNextKey()).page();
+			assertEquals(2, page.getRows().get(0).id);
+			assertEquals(9, page.getRows().get(1).id);
+			assertEquals(7, page.getRows().get(2).id);
+			assertTrue(page.hasNext());
+
+			page = tx.from(DBTest.class).orderBy("c", "id desc").limit(3).after(page.getRows().get(2)).page();
+			assertEquals(3, page.getRows().size());
+			assertEquals(1, page.getRows().get(2).id);
+			assertFalse(page.hasNext());
+		}
+		// from DBTest where c = '1' and (id < 7) order by id desc
+		try (Tx tx = new Tx(_sf)) {
+			List<DBTest> list = tx.from(DBTest.class)
+				.where("c = :c")
+				.orderBy("id desc")
+				.param("c", "1")
+				.seek(7)
+				.list();
+			assertEquals(3, list.size());
+			assertEquals(5, list.get(0).id);
+		}
+		// seek() の後の orderBy() も条件に反映する
+		try (Tx tx = new Tx(_sf)) {
+			List<DBTest> list = tx.from(DBTest.class)
+				.seek(7)
+				.orderBy("id desc")
+				.list();
+			assertEquals(6, list.size());
+			assertEquals(6, list.get(0).id);
+			try {
+				tx.from(DBTest.class).orderBy("id").seek(7).orderBy("c", "id").list();
+				fail();
+			}
+			catch (IllegalStateException e) {
+				assertTrue(e.getMessage().contains("seek() needs 2 values"));
+			}
+		}
+	}
+
 	@Test
 	public void test_Finder_uniq() {
 		// from DBTest
@@ -166,6 +626,171 @@ public class RakuRakuHibernateTest {
 		}
 	}
 	
+	@Test
+	public void test_Finder_cursor() {
+		// from DBTest where c = '1' order by id desc
+		try (Tx tx = new Tx(_sf)) {
+			try (RakuRakuCursor<DBTest> cursor = tx.from(DBTest.class)
+					.where("c = :c")
+					.orderBy("id desc")
+					.param("c", "1")
+					.fetchSize(2)
+					.clearEvery(2)
+					.cursor()) {
+				int[] expected = { 9, 7, 5, 3, 1 };
+				for (int id : expected) {
+					assertTrue(cursor.hasNext());
+					assertEquals(id, cursor.next().id);
+				}
+				assertFalse(cursor.hasNext());
+				assertEquals(5, cursor.getCount());
+			}
+		}
+		// forEach
+		try (Tx tx = new Tx(_sf)) {
+			final List<Integer> ids = new ArrayList<>();
+			long cnt = tx.from(DBTest.class).orderBy("id").clearEvery(3).forEach(new RowHandler<DBTest>() {
+				@Override
+				public void handle(DBTest row) {
+					ids.add(row.id);
+				}
+			});
+			assertEquals(9, cnt);
+			assertEquals(9, ids.size());
+			assertEquals(1, (int) ids.get(0));
+			assertEquals(9, (int) ids.get(8));
+		}
+	}
+
+	@Test
+	public void test_Query() {
+		assertEquals("from " + DBTest.class.getCanonicalName() + " where (c = :c)  order by id desc ", FIND_BY_C.getHQL());
+		FIND_BY_C.compile(_sf);
+		try (Tx tx = new Tx(_sf)) {
+			List<DBTest> list = FIND_BY_C.bind(tx).param("c", "1").limit(2).list();
+			assertEquals(2, list.size());
+			assertEquals(9, list.get(0).id);
+			assertEquals(7, list.get(1).id);
+			assertEquals(4, FIND_BY_C.bind(tx).param("c", "0").list().size());
+		}
+		try {
+			RakuRakuQuery.from(DBTest.class).where("c = = :c");
+			fail();
+		}
+		catch (QueryException e) {
+			// ok
+		}
+		try {
+			RakuRakuQuery.from(DBTest.class).where("a.nothing = :c").compile(_sf);
+			fail();
+		}
+		catch (QueryException e) {
+			// ok
+		}
+	}
+
+	@Test
+	public void test_Finder_cacheIn() {
+		ResultCache cache = new ResultCache(100, 1, TimeUnit.MINUTES);
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals(5, tx.from(DBTest.class).where("c = :c").param("c", "1").cacheIn(cache).list().size());
+			assertEquals(1, cache.size());
+			// changes bypassing Tx are not seen until invalidated
+			tx.getSession().createSQLQuery(" update test set c = '1' where id = 2 ").executeUpdate();
+			assertEquals(5, tx.from(DBTest.class).where("c = :c").param("c", "1").cacheIn(cache).list().size());
+			assertEquals(3, tx.from(DBTest.class).where("c = :c").param("c", "0").cacheIn(cache).list().size());
+			tx.commit();
+		}
+		try (Tx tx = new Tx(_sf)) {
+			tx.update(DBTest.class).set("b = 'x'").where("id = 1").execute();
+			assertEquals(2, cache.size());
+			tx.commit();
+		}
+		assertEquals(0, cache.size());
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals(6, tx.from(DBTest.class).where("c = :c").param("c", "1").cacheIn(cache).list().size());
+			assertNull(tx.from(DBTest.class).where("id = 999").cacheIn(cache).uniq());
+			assertNull(tx.from(DBTest.class).where("id = 999").cacheIn(cache).uniq());
+			tx.save(new DBTest(999, "test", "test", "test"));
+			tx.commit();
+		}
+		try (Tx tx = new Tx(_sf)) {
+			assertNotNull(tx.from(DBTest.class).where("id = 999").cacheIn(cache).uniq());
+			// hits are loaded into this session
+			DBTest cached = tx.from(DBTest.class).where("id = 999").cacheIn(cache).uniq();
+			assertTrue(tx.getSession().contains(cached));
+			assertEquals(6, tx.from(DBTest.class).where("c = :c").param("c", "1").cacheIn(cache).list().size());
+			assertEquals(2, cache.size());
+			// read your own writes after flush, then invalidate by dirty checking
+			DBTest o = tx.from(DBTest.class).where("id = 4").uniq();
+			o.c = "1";
+			tx.getSession().flush();
+			assertEquals(7, tx.from(DBTest.class).where("c = :c").param("c", "1").cacheIn(cache).list().size());
+			assertEquals(2, cache.size());
+			tx.commit();
+		}
+		assertEquals(0, cache.size());
+		Statistics stats = _sf.getStatistics();
+		stats.setStatisticsEnabled(true);
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals(7, tx.from(DBTest.class).where("c = :c").param("c", "1").cacheIn(cache).list().size());
+			// hits for entities already in the session need no SQL
+			stats.clear();
+			assertEquals(7, tx.from(DBTest.class).where("c = :c").param("c", "1").cacheIn(cache).list().size());
+			assertEquals(0, stats.getPrepareStatementCount());
+		}
+		finally {
+			stats.setStatisticsEnabled(false);
+		}
+	}
+
+	@Test
+	public void test_Finder_cacheable() {
+		Statistics stats = _sf.getStatistics();
+		stats.setStatisticsEnabled(true);
+		stats.clear();
+		try {
+			try (Tx tx = new Tx(_sf)) {
+				assertEquals(5, tx.from(DBTest.class).where("c = :c").param("c", "1").cacheable("test").list().size());
+				tx.commit();
+			}
+			assertEquals(1, stats.getQueryCachePutCount());
+			try (Tx tx = new Tx(_sf)) {
+				assertEquals(5, tx.from(DBTest.class).where("c = :c").param("c", "1").cacheable("test").list().size());
+				tx.update(DBTest.class).set("c = '1'").where("id = 2").execute();
+				tx.commit();
+			}
+			assertEquals(1, stats.getQueryCacheHitCount());
+			try (Tx tx = new Tx(_sf)) {
+				assertEquals(6, tx.from(DBTest.class).where("c = :c").param("c", "1").cacheable("test").list().size());
+			}
+			assertEquals(1, stats.getQueryCacheHitCount());
+		}
+		finally {
+			stats.setStatisticsEnabled(false);
+		}
+	}
+
+	@Test
+	public void test_QueryStats() throws Exception {
+		QueryStats stats = QueryStats.getInstance();
+		stats.reset();
+		String hql;
+		try (Tx tx = new Tx(_sf)) {
+			hql = tx.from(DBTest.class).where("c = :c").getHQL();
+			tx.from(DBTest.class).where("c = :c").param("c", "1").list();
+			tx.from(DBTest.class).where("c = :c").param("c", "0").list();
+			tx.delete(DBTest.class).where("c = :c").param("c", "0").execute();
+			tx.commit();
+		}
+		assertEquals(2, stats.getCount(hql));
+		assertEquals(9, stats.getRows(hql));
+		assertTrue(stats.getMaxMillis(hql) > 0);
+		assertTrue(stats.getPercentileMillis(hql, 99) > 0);
+		String[] queries = (String[]) ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(QueryStats.OBJECT_NAME), "Queries");
+		assertEquals(3, queries.length);
+	}
+
 	@Test
 	public void test_Deleter() {
 		try (Tx tx = new Tx(_sf)) {
@@ -202,4 +827,565 @@ public class RakuRakuHibernateTest {
 		}
 	}
 
+	@Test
+	public void test_Updater_batch() {
+		try (Tx tx = new Tx(_sf)) {
+			RakuRakuUpdater<DBTest> updater = tx.update(DBTest.class).set("b = :b").where("id = :id");
+			for (int id = 1; id <= 3; id++) {
+				updater.param("id", id).param("b", "batch" + id).addBatch();
+			}
+			updater.param("id", 999).param("b", "none").addBatch();
+			int[] counts = updater.executeBatch();
+			assertArrayEquals(new int[] { 1, 1, 1, 0 }, counts);
+			tx.commit();
+		}
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals("batch2", tx.from(DBTest.class).where("id = 2").uniq().b);
+			assertEquals(3, tx.from(DBTest.class).where("b like 'batch%'").count());
+		}
+	}
+
+	@Test
+	public void test_Deleter_batch() {
+		try (Tx tx = new Tx(_sf)) {
+			RakuRakuDeleter<DBTest> deleter = tx.delete(DBTest.class).where("id = :id", "c = :c");
+			deleter.param("id", 1).param("c", "1").addBatch();
+			deleter.param("id", 2).param("c", "1").addBatch();
+			deleter.param("id", 3).param("c", "1").addBatch();
+			assertArrayEquals(new int[] { 1, 0, 1 }, deleter.executeBatch());
+			assertEquals(0, deleter.executeBatch().length);
+			tx.commit();
+		}
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals(7, tx.from(DBTest.class).count());
+		}
+		try (Tx tx = new Tx(_sf)) {
+			// hibernate.jdbc.batch_size 未設定 (50件) を超えるパラメータセット
+			RakuRakuDeleter<DBTest> deleter = tx.delete(DBTest.class).where("id = :id");
+			for (int id = 1; id <= 120; id++) {
+				deleter.param("id", id).addBatch();
+			}
+			int[] counts = deleter.executeBatch();
+			assertEquals(120, counts.length);
+			assertEquals(1, counts[1]);
+			assertEquals(0, counts[119]);
+			tx.commit();
+		}
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals(0, tx.from(DBTest.class).count());
+		}
+	}
+
+	@Test
+	public void test_Finder_chunkedInList() {
+		List<Integer> ids = Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 8, 3, 100);
+		try (Tx tx = new Tx(_sf)) {
+			List<DBTest> list = tx.from(DBTest.class).where("id in (:ids)").orderBy("id desc").param("ids", ids).chunkSize(3).limit(4).offset(1).list();
+			assertEquals(4, list.size());
+			assertEquals(7, list.get(0).id);
+			assertEquals(4, list.get(3).id);
+			assertEquals(8, tx.from(DBTest.class).where("id in (:ids)").param("ids", ids).chunkSize(3).list().size());
+			assertEquals(5, tx.from(DBTest.class).where("id in (:ids)").param("ids", Arrays.asList(1, 2, 3, 4, 5)).list().size());
+		}
+		try (Tx tx = new Tx(_sf); TxExecutor executor = new TxExecutor(_sf, 3)) {
+			List<DBTest> list = tx.from(DBTest.class).where("id in (:ids)", "c = :c").orderBy("b").param("ids", ids).param("c", "0").chunkSize(2).parallelChunks(executor).list();
+			assertEquals(4, list.size());
+			assertEquals("234", list.get(0).b);
+			assertEquals("890", list.get(3).b);
+		}
+		Statistics stats = _sf.getStatistics();
+		stats.setStatisticsEnabled(true);
+		try (Tx tx = new Tx(_sf)) {
+			// 関数の order by はメモリ上で並べ替えられないので分割しない
+			stats.clear();
+			List<DBTest> list = tx.from(DBTest.class).where("id in (:ids)").orderBy("lower(a) desc").param("ids", ids).chunkSize(3).list();
+			assertEquals(8, list.size());
+			assertEquals(8, list.get(0).id);
+			assertEquals(1, stats.getQueryExecutionCount());
+		}
+		try (Tx tx = new Tx(_sf)) {
+			// ソートキーの null は DB と同じ順序に並べる
+			tx.getSession().createSQLQuery("update test set b = null where id in (5, 7)").executeUpdate();
+			for (String order : new String[] { "b", "b desc" }) {
+				List<DBTest> expected = tx.from(DBTest.class).where("id <= 8").orderBy(order, "id").list();
+				stats.clear();
+				List<DBTest> list = tx.from(DBTest.class).where("id in (:ids)").orderBy(order, "id").param("ids", ids).chunkSize(3).list();
+				assertEquals(expected, list);
+				assertEquals(3, stats.getQueryExecutionCount());
+			}
+		}
+		finally {
+			stats.setStatisticsEnabled(false);
+		}
+	}
+
+	@Test
+	public void test_トランザクション_getAll() {
+		try (Tx tx = new Tx(_sf)) {
+			DBTest loaded = (DBTest) tx.getSession().get(DBTest.class, 2);
+			loaded.a = "changed";
+			Map<Integer, DBTest> map = tx.get(DBTest.class, Arrays.asList(5, 2, 100, 9, 5));
+			assertEquals(Arrays.asList(5, 2, 9), new ArrayList<>(map.keySet()));
+			assertSame(loaded, map.get(2));
+			assertEquals("changed", map.get(2).a);
+			assertEquals("efg", map.get(5).a);
+			tx.delete(map.get(9));
+			assertFalse(tx.get(DBTest.class, Arrays.asList(9)).containsKey(9));
+		}
+	}
+
+	@Test
+	public void test_Tx_lazySession() {
+		try (Tx tx = new Tx(_sf)) {
+			assertFalse(tx.isStarted());
+			tx.commit();
+			assertFalse(tx.isStarted());
+		}
+		try (Tx tx = new Tx(_sf)) {
+			assertFalse(tx.isStarted());
+			assertEquals(9, tx.from(DBTest.class).count());
+			assertTrue(tx.isStarted());
+		}
+		Session session;
+		try (Tx tx = Tx.readOnly(_sf)) {
+			session = tx.getSession();
+			assertTrue(session.isOpen());
+		}
+		assertFalse(session.isOpen());
+	}
+
+	@Test
+	public void test_Tx_nested() {
+		try (Tx outer = Tx.required(_sf)) {
+			DBTest o = (DBTest) outer.getSession().get(DBTest.class, 1);
+			try (Tx inner = Tx.required(_sf)) {
+				assertSame(outer.getSession(), inner.getSession());
+				assertSame(o, inner.getSession().get(DBTest.class, 1));
+				inner.update(DBTest.class).set("a = 'required'").where("id = 2").execute();
+				inner.commit();
+			}
+			try (Tx inner = Tx.nested(_sf)) {
+				inner.update(DBTest.class).set("a = 'nested'").where("id = 3").execute();
+				o.b = "nested";
+				inner.getSession().flush();
+				inner.save(new DBTest(10, "nested", "nested", "nested"));
+			}
+			// the outer entity is still managed and restored to the savepoint
+			assertTrue(outer.getSession().contains(o));
+			assertEquals("123", o.b);
+			o.c = "outer";
+			try (Tx inner = Tx.nested(_sf)) {
+				inner.update(DBTest.class).set("a = 'nested'").where("id = 4").execute();
+				inner.commit();
+			}
+			outer.commit();
+		}
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals("outer", tx.from(DBTest.class).where("id = 1").uniq().c);
+			assertEquals("required", tx.from(DBTest.class).where("id = 2").uniq().a);
+			assertEquals("cde", tx.from(DBTest.class).where("id = 3").uniq().a);
+			assertEquals("nested", tx.from(DBTest.class).where("id = 4").uniq().a);
+			assertNull(tx.from(DBTest.class).where("id = 10").uniq());
+			// plain Tx is not bound to the thread
+			try (Tx inner = Tx.required(_sf)) {
+				assertNotSame(tx.getSession(), inner.getSession());
+			}
+		}
+		try (Tx outer = Tx.required(_sf)) {
+			outer.update(DBTest.class).set("a = 'outer'").where("id = 5").execute();
+			try (Tx inner = Tx.required(_sf)) {
+				inner.update(DBTest.class).set("a = 'inner'").where("id = 6").execute();
+			}
+			try {
+				outer.commit();
+				fail();
+			}
+			catch (TransactionException e) {
+				// rolled back
+			}
+		}
+		try (Tx tx = Tx.required(_sf)) {
+			assertEquals("efg", tx.from(DBTest.class).where("id = 5").uniq().a);
+			assertEquals("fgh", tx.from(DBTest.class).where("id = 6").uniq().a);
+		}
+	}
+
+	@Test
+	public void test_Tx_run() {
+		QueryStats stats = QueryStats.getInstance();
+		stats.reset();
+		final AtomicInteger attempts = new AtomicInteger();
+		RetryPolicy policy = new RetryPolicy().maxAttempts(3).backoff(1, 2);
+		String a = Tx.run(_sf, policy, new TxCallback<String>() {
+			@Override
+			public String call(Tx tx) {
+				tx.update(DBTest.class).set("a = 'run'").where("id = 1").execute();
+				if (attempts.incrementAndGet() < 3) {
+					throw new StaleObjectStateException(DBTest.class.getName(), 1);
+				}
+				return tx.from(DBTest.class).where("id = 1").uniq().a;
+			}
+		});
+		assertEquals("run", a);
+		assertEquals(3, attempts.get());
+		assertEquals(2, stats.getRetryCount());
+		assertEquals(Long.valueOf(2), stats.getRetryCountByException().get(StaleObjectStateException.class.getName()));
+
+		attempts.set(0);
+		try {
+			Tx.run(_sf, policy, new TxCallback<Void>() {
+				@Override
+				public Void call(Tx tx) {
+					attempts.incrementAndGet();
+					throw new StaleObjectStateException(DBTest.class.getName(), 1);
+				}
+			});
+			fail();
+		}
+		catch (StaleObjectStateException e) {
+			assertEquals(3, attempts.get());
+			assertEquals(1, stats.getRetryExhaustedCount());
+		}
+
+		attempts.set(0);
+		try {
+			Tx.run(_sf, policy, new TxCallback<Void>() {
+				@Override
+				public Void call(Tx tx) {
+					attempts.incrementAndGet();
+					throw new IllegalArgumentException();
+				}
+			});
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals(1, attempts.get());
+		}
+
+		// required() inside the callback joins the attempt, not the outer transaction
+		attempts.set(0);
+		try (final Tx outer = Tx.required(_sf)) {
+			Tx.run(_sf, policy, new TxCallback<Void>() {
+				@Override
+				public Void call(Tx tx) {
+					try (Tx inner = Tx.required(_sf)) {
+						assertSame(tx.getSession(), inner.getSession());
+						assertNotSame(outer.getSession(), inner.getSession());
+						inner.update(DBTest.class).set("b = 'attempt'").where("id = 2").execute();
+						inner.commit();
+					}
+					if (attempts.incrementAndGet() < 2) {
+						throw new StaleObjectStateException(DBTest.class.getName(), 2);
+					}
+					return null;
+				}
+			});
+			outer.commit();
+		}
+
+		assertTrue(policy.isRetriable(new SQLException("Timeout trying to lock table", "HYT00", 50200)));
+		assertTrue(policy.isRetriable(new SQLException("Lock wait timeout exceeded", "HY000", 1205)));
+		assertFalse(policy.isRetriable(new SQLException("Syntax error", "42000", 42000)));
+		RetryPolicy oracle = new RetryPolicy().sqlStates("61000").errorCodes(60);
+		assertTrue(oracle.isRetriable(new SQLException("deadlock detected", "61000", 60)));
+		assertFalse(oracle.isRetriable(new SQLException("Timeout trying to lock table", "HYT00", 50200)));
+	}
+
+	@Test
+	public void test_SQLExecutor() {
+		try (Tx tx = new Tx(_sf)) {
+			List<DBTest> list = tx.sql(DBTest.class).where("c = :c").orderBy("id desc").limit(2).param("c", "1").list();
+			assertEquals(2, list.size());
+			assertEquals(9, list.get(0).id);
+			assertEquals("ghi", list.get(1).a);
+			assertSame(list.get(0), tx.getSession().get(DBTest.class, 9));
+
+			List<DBTestDto> dtos = tx.sql(DBTestDto.class, "select id, a from test").where("id <= :id").orderBy("id").param("id", 3).list();
+			assertEquals(3, dtos.size());
+			assertEquals(2, dtos.get(1).id);
+			assertEquals("cde", dtos.get(2).a);
+
+			List<Object[]> rows = tx.sql("select count(*) from test").list();
+			assertEquals(9, ((Number) rows.get(0)[0]).intValue());
+			Object[] row = tx.sql("select id, b from test").where("id = 4").uniq();
+			assertEquals("456", row[1]);
+		}
+	}
+
+	@Test
+	public void test_SQLExecutor_columns() {
+		try (Tx tx = new Tx(_sf)) {
+			tx.update(DBTest.class).set("c = null").where("id = 9").execute();
+			ColumnarResult result = tx.sql("select id, c, cast(id as bigint) * 10 as big, cast(id as double) / 2 as half,"
+				+ " cast(id as decimal(10, 0)) as num, cast(id as decimal(10, 2)) / 4 as quarter from test")
+				.where("id in (:ids)")
+				.orderBy("id")
+				.param("ids", Arrays.asList(1, 2, 3, 9))
+				.offset(1)
+				.limit(3)
+				.columns();
+			assertEquals(3, result.size());
+			assertArrayEquals(new int[] { 2, 3, 9 }, result.getInts("ID"));
+			assertArrayEquals(new long[] { 20, 30, 90 }, result.getLongs("big"));
+			assertEquals(1.5, result.getDoubles("half")[1], 0.0001);
+			// 小数部のない DECIMAL は long, ある DECIMAL は BigDecimal
+			assertArrayEquals(new long[] { 2, 3, 9 }, result.getLongs("num"));
+			assertEquals(0, new BigDecimal("0.75").compareTo((BigDecimal) result.getObject(result.getColumnIndex("quarter"), 1)));
+			assertEquals(0.75, result.getDouble(result.getColumnIndex("quarter"), 1), 0.0001);
+			assertArrayEquals(new String[] { "0", "1" }, result.getDictionary("c"));
+			assertArrayEquals(new int[] { 0, 1, -1 }, result.getCodes("c"));
+			assertTrue(result.isNull(result.getColumnIndex("c"), 2));
+			assertEquals("1", result.getString(1, 1));
+		}
+	}
+
+	@Test
+	public void test_exportTo() throws Exception {
+		Path csv = Files.createTempFile("rakuraku", ".csv");
+		try (Tx tx = new Tx(_sf)) {
+			tx.update(DBTest.class).set("a = 'x,\"y\"'").where("id = 1").execute();
+			tx.getSession().createSQLQuery("update test set b = '', c = null where id = 2").executeUpdate();
+			DBTest kept = (DBTest) tx.getSession().get(DBTest.class, 3);
+			BulkResult result = tx.from(DBTest.class).where("id <= 2").orderBy("id").exportTo(csv, ExportFormat.CSV);
+			assertEquals(2, result.getCount());
+			List<String> lines = Files.readAllLines(csv, StandardCharsets.UTF_8);
+			assertEquals(3, lines.size());
+			assertEquals("id,a,b,c", lines.get(0));
+			assertEquals("1,\"x,\"\"y\"\"\",123,1", lines.get(1));
+			assertEquals("2,bcd,\"\",", lines.get(2));
+			// 呼び出し元のエンティティは残し、書き出した行だけ evict
+			assertTrue(tx.getSession().contains(kept));
+			assertEquals(1, tx.getSession().getStatistics().getEntityCount());
+
+			// 関連エンティティは識別子を書き出す
+			result = tx.from(DBTestNode.class).where("id = 4").exportTo(csv, ExportFormat.CSV);
+			assertEquals(Arrays.asList("id,name,parent,test", "4,leaf2,1,4"), Files.readAllLines(csv, StandardCharsets.UTF_8));
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			result = tx.sql("select id, b from test").orderBy("id desc").limit(2).exportTo(Channels.newChannel(out), ExportFormat.TSV);
+			assertEquals(2, result.getCount());
+			assertEquals("ID\tB\n9\t901\n8\t890\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+		}
+		finally {
+			Files.delete(csv);
+		}
+	}
+
+	@Test
+	public void test_Loader() throws Exception {
+		Path csv = Files.createTempFile("rakuraku", ".csv");
+		Path rejects = Files.createTempFile("rakuraku", ".rejected.csv");
+		Path tsv = Files.createTempFile("rakuraku", ".tsv");
+		try {
+			Files.write(csv, Arrays.asList("ID,a,B", "10,\"x,\"\"y\"\"\",100", "11,z,", "", "x,bad,1", "12,w"), StandardCharsets.UTF_8);
+			final List<Long> progress = new ArrayList<>();
+			try (Tx tx = new Tx(_sf)) {
+				DBTest kept = (DBTest) tx.getSession().get(DBTest.class, 1);
+				BulkResult result = tx.load(DBTest.class).rejectTo(rejects).listener(1, new LoadListener() {
+					@Override
+					public void onProgress(long loaded, long rejected) {
+						progress.add(loaded + rejected);
+					}
+				}).fromCsv(csv);
+				assertEquals(2, result.getCount());
+				assertEquals(2, result.getRejected());
+				// reject した行でも進捗を呼び出す
+				assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 4L), progress);
+				// 呼び出し元のエンティティは evict しない
+				assertTrue(tx.getSession().contains(kept));
+				tx.commit();
+			}
+			List<String> rejected = Files.readAllLines(rejects, StandardCharsets.UTF_8);
+			assertEquals(3, rejected.size());
+			assertEquals("ID,a,B,error", rejected.get(0));
+			assertTrue(rejected.get(1).startsWith("x,bad,1,"));
+			assertTrue(rejected.get(1).contains("line 5: "));
+			assertTrue(rejected.get(2).contains("line 6: "));
+			try (Tx tx = new Tx(_sf)) {
+				DBTest o = tx.from(DBTest.class).where("id = 10").uniq();
+				assertEquals("x,\"y\"", o.a);
+				assertEquals("100", o.b);
+				assertNull(tx.from(DBTest.class).where("id = 11").uniq().b);
+			}
+
+			try (Tx tx = new Tx(_sf)) {
+				tx.getSession().createSQLQuery("update test set b = '', c = null where id = 3").executeUpdate();
+				tx.from(DBTest.class).where("id <= 3").orderBy("id").exportTo(tsv, ExportFormat.TSV);
+				assertEquals("3\tcde\t\t\\N", Files.readAllLines(tsv, StandardCharsets.UTF_8).get(3));
+			}
+			try (StatelessTx tx = new StatelessTx(_sf)) {
+				tx.delete(DBTest.class).where("id <= 3").execute();
+				assertEquals(3, tx.load(DBTest.class).fromTsv(tsv).getCount());
+				tx.commit();
+			}
+			try (Tx tx = new Tx(_sf)) {
+				DBTest o = tx.from(DBTest.class).where("id = 3").uniq();
+				assertEquals("cde", o.a);
+				assertEquals("", o.b);
+				assertNull(o.c);
+				assertEquals(11, tx.from(DBTest.class).count());
+			}
+
+			// 関連エンティティは識別子で書き出してロードする
+			try (Tx tx = new Tx(_sf)) {
+				tx.from(DBTestNode.class).orderBy("id").exportTo(csv, ExportFormat.CSV);
+				tx.getSession().createSQLQuery("delete from test_node").executeUpdate();
+				progress.clear();
+				BulkResult result = tx.load(DBTestNode.class).listener(0, new LoadListener() {
+					@Override
+					public void onProgress(long loaded, long rejected) {
+						progress.add(loaded + rejected);
+					}
+				}).fromCsv(csv);
+				assertEquals(5, result.getCount());
+				assertEquals(Arrays.asList(5L), progress);
+				tx.commit();
+			}
+			try (Tx tx = new Tx(_sf)) {
+				DBTestNode leaf = tx.from(DBTestNode.class).where("id = 4").uniq();
+				assertEquals(1, leaf.parent.id);
+				assertEquals(4, leaf.test.id);
+				assertNull(tx.from(DBTestNode.class).where("id = 1").uniq().parent);
+			}
+
+			// 生成される識別子はファイルの値で上書きできない
+			Files.write(csv, Arrays.asList("id,name", "100,a"), StandardCharsets.UTF_8);
+			try (Tx tx = new Tx(_sf)) {
+				tx.load(DBTestGenerated.class).fromCsv(csv);
+				fail();
+			}
+			catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage().contains("generated"));
+			}
+			Files.write(csv, Arrays.asList("name", "a", "b"), StandardCharsets.UTF_8);
+			try (Tx tx = new Tx(_sf)) {
+				assertEquals(2, tx.load(DBTestGenerated.class).fromCsv(csv).getCount());
+				tx.commit();
+			}
+			try (Tx tx = new Tx(_sf)) {
+				assertEquals(2, tx.from(DBTestGenerated.class).count());
+			}
+		}
+		finally {
+			Files.delete(csv);
+			Files.delete(rejects);
+			Files.delete(tsv);
+		}
+	}
+
+	@Test
+	public void test_QueryRegistry() {
+		QueryRegistry registry = new QueryRegistry();
+		RakuRakuQuery<DBTest> query = registry.register(RakuRakuQuery.from(DBTest.class).where("a = :a").orderBy("id"));
+		registry.register("update " + DBTest.class.getName() + " set b = :b where id = :id");
+		registry.register("from " + DBTest.class.getName() + " where nothing.a = 1");
+		RakuRakuQuery<DBTest> in = registry.register(RakuRakuQuery.from(DBTest.class).where("id in (:ids)").orderBy("id"));
+		RakuRakuQuery<DBTestNode> fetch = registry.register(RakuRakuQuery.from(DBTestNode.class).fetch("test").where("root.name = :name").orderBy("root.id"));
+		assertEquals(5, registry.size());
+		WarmUpResult result = registry.warmUp(_sf, 2);
+		// list, count, exists × (1 + in-list 1, 2, 4, 8, 16)
+		assertEquals(3 + 1 + 3 * 6 + 3, result.getCompiled());
+		assertFalse(result.isSuccess());
+		assertTrue(result.getFailures().containsKey("from " + DBTest.class.getName() + " where nothing.a = 1"));
+		try {
+			result.throwIfFailed();
+			fail();
+		}
+		catch (HibernateException e) {
+			assertTrue(e.getMessage().contains("nothing.a"));
+		}
+		int plans = planCacheSize(_sf);
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals(1, query.bind(tx).param("a", "abc").list().size());
+			assertEquals(1, query.bind(tx).param("a", "abc").count());
+			assertTrue(query.bind(tx).param("a", "abc").exists());
+			assertEquals(3, in.bind(tx).param("ids", Arrays.asList(1, 2, 3)).list().size());
+			assertEquals(3, in.bind(tx).param("ids", Arrays.asList(1, 2, 3)).count());
+			assertEquals("efg", fetch.bind(tx).param("name", "leaf3").uniq().test.a);
+		}
+		assertEquals(plans, planCacheSize(_sf));
+
+		// SessionFactory の作成後に登録したクエリは登録時にコンパイル
+		RakuRakuQuery<DBTest> late = registry.register(RakuRakuQuery.from(DBTest.class).where("b = :b"));
+		plans = planCacheSize(_sf);
+		try (Tx tx = new Tx(_sf)) {
+			assertEquals(0, late.bind(tx).param("b", "none").list().size());
+		}
+		assertEquals(plans, planCacheSize(_sf));
+	}
+
+	/**
+	 * クエリプランキャッシュの件数
+	 * 
+	 * @param sf
+	 * @return
+	 */
+	static int planCacheSize(SessionFactory sf) {
+		try {
+			Field field = QueryPlanCache.class.getDeclaredField("planCache");
+			field.setAccessible(true);
+			SoftLimitMRUCache cache = (SoftLimitMRUCache) field.get(((SessionFactoryImplementor) sf).getQueryPlanCache());
+			return cache.softSize();
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Test
+	public void test_Fetch() {
+		try (Tx tx = new Tx(_sf)) {
+			List<DBTestNode> leaves = tx.from(DBTestNode.class)
+				.fetch("parent.test")
+				.where("parent_.name = :name")
+				.orderBy("root.id")
+				.param("name", "root1")
+				.list();
+			assertEquals(2, leaves.size());
+			for (DBTestNode leaf : leaves) {
+				assertTrue(Hibernate.isInitialized(leaf.parent));
+				assertTrue(Hibernate.isInitialized(leaf.parent.test));
+				assertEquals("abc", leaf.parent.test.a);
+			}
+		}
+		try (Tx tx = new Tx(_sf)) {
+			List<DBTestNode> roots = tx.from(DBTestNode.class)
+				.fetch("children")
+				.where("root.parent is null")
+				.orderBy("root.id")
+				.list();
+			assertEquals(2, roots.size());
+			assertTrue(Hibernate.isInitialized(roots.get(0).children));
+			assertEquals(2, roots.get(0).children.size());
+			assertEquals(1, roots.get(1).children.size());
+			assertEquals(2, tx.from(DBTestNode.class).fetch("children").where("children_.id > 0").count());
+			assertEquals(1, tx.from(DBTestNode.class).fetch("children").orderBy("root.id").limit(1).list().size());
+			DBTestNode root = tx.from(DBTestNode.class).fetch("children").where("root.parent is null").orderBy("root.id").uniq();
+			assertEquals("root1", root.name);
+			assertTrue(Hibernate.isInitialized(root.children));
+			assertEquals(2, root.children.size());
+			try {
+				tx.from(DBTestNode.class).fetch("children").cursor();
+				fail();
+			}
+			catch (IllegalStateException e) {
+				assertTrue(e.getMessage().contains("collection fetch"));
+			}
+			try {
+				tx.from(DBTestNode.class).fetch("children").partitionBy("id", 2);
+				fail();
+			}
+			catch (IllegalStateException e) {
+				assertTrue(e.getMessage().contains("collection fetch"));
+			}
+			RakuRakuQuery<DBTestNode> query = RakuRakuQuery.from(DBTestNode.class).fetch("test").where("root.name = :name").orderBy("root.id");
+			// bind() reuses the HQL built once by the query
+			assertSame(query.getHQL(), query.bind(tx).getHQL());
+			DBTestNode leaf = query.bind(tx)
+				.param("name", "leaf3")
+				.uniq();
+			assertTrue(Hibernate.isInitialized(leaf.test));
+			assertEquals("efg", leaf.test.a);
+		}
+	}
 }
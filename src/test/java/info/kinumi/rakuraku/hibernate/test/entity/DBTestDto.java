@@ -0,0 +1,14 @@
+package info.kinumi.rakuraku.hibernate.test.entity;
+
+public class DBTestDto {
+	public int id;
+	public String a;
+
+	public DBTestDto() {
+	}
+
+	public DBTestDto(int id, String a) {
+		this.id = id;
+		this.a = a;
+	}
+}
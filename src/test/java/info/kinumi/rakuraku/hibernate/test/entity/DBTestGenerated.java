@@ -0,0 +1,22 @@
+package info.kinumi.rakuraku.hibernate.test.entity;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+@Entity
+@Table(name = "test_generated")
+public class DBTestGenerated {
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	public int id;
+	@Column
+	public String name;
+	
+	public DBTestGenerated() {
+		
+	}
+}
@@ -0,0 +1,34 @@
+package info.kinumi.rakuraku.hibernate.test.entity;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.Table;
+
+@Entity
+@Table(name = "test_node")
+public class DBTestNode {
+	@Id
+	public int id;
+	@Column
+	public String name;
+	@ManyToOne(fetch = FetchType.LAZY)
+	@JoinColumn(name = "test_id")
+	public DBTest test;
+	@ManyToOne(fetch = FetchType.LAZY)
+	@JoinColumn(name = "parent_id")
+	public DBTestNode parent;
+	@OneToMany(mappedBy = "parent")
+	public Set<DBTestNode> children = new HashSet<>();
+	
+	public DBTestNode() {
+		
+	}
+}